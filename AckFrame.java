@@ -0,0 +1,111 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Fixed size binary ack frame sent by the TCP receiver to the TCP sender
+ * over the ack connection.
+ *
+ * Frame layout (big endian):
+ *  0  sequence number of the acknowledged segment
+ *  4  ack number, cumulative: the next sequence number the receiver expects
+ *  8  flags of the acknowledged segment (ACK, FIN)
+ *  9  number of SACK blocks in use
+ * 10  receive window in segments, the number of segments the receiver
+ *     can take, 0 when it is closed
+ * 12  up to MAX_SACK_BLOCKS SACK blocks, each the left edge (first
+ *     sequence number) and right edge (sequence number after the last)
+ *     of a range received out of order
+ *
+ * Each side keeps one AckFrame and reuses its buffer for every ack, fields
+ * are read and written in place so no object is created per ack.
+ */
+public class AckFrame {
+    public final static int MAX_SACK_BLOCKS = 3;
+    private final static int SACK_BLOCK_SIZE = 8;
+    public final static int FRAME_SIZE = 12 + MAX_SACK_BLOCKS * SACK_BLOCK_SIZE;
+    private final static int SEQ_NUM_INDEX = 0;
+    private final static int ACK_NUM_INDEX = 4;
+    private final static int FLAG_INDEX = 8;
+    private final static int SACK_COUNT_INDEX = 9;
+    private final static int WINDOW_INDEX = 10;
+    private final static int SACK_INDEX = 12;
+    private final static int FRAMES_PER_READ = 64;
+    private ByteBuffer buffer;
+    private int frameStart;
+
+    public AckFrame() {
+        this.buffer = ByteBuffer.allocateDirect(FRAME_SIZE * FRAMES_PER_READ);
+        this.buffer.flip();
+        this.frameStart = 0;
+    }
+
+    /*
+     * Write one frame to the channel. sackEdges holds the left and right
+     * edge of each of the first sackBlocks SACK blocks.
+     */
+    public void write(SocketChannel channel, int seqNum, int ackNum, byte flag,
+            short window, int[] sackEdges, int sackBlocks) throws IOException {
+        this.buffer.clear();
+        this.buffer.putInt(SEQ_NUM_INDEX, seqNum);
+        this.buffer.putInt(ACK_NUM_INDEX, ackNum);
+        this.buffer.put(FLAG_INDEX, flag);
+        this.buffer.put(SACK_COUNT_INDEX, (byte) sackBlocks);
+        this.buffer.putShort(WINDOW_INDEX, window);
+        for (int i = 0; i < MAX_SACK_BLOCKS; i++) {
+            int index = SACK_INDEX + i * SACK_BLOCK_SIZE;
+            this.buffer.putInt(index, i < sackBlocks ? sackEdges[2 * i] : 0);
+            this.buffer.putInt(index + 4, i < sackBlocks ? sackEdges[2 * i + 1] : 0);
+        }
+        this.buffer.limit(FRAME_SIZE);
+        this.frameStart = 0;
+        while (this.buffer.hasRemaining())
+            channel.write(this.buffer);
+    }
+
+    /*
+     * Move to the next frame from the channel, reading as many frames as
+     * are available at once. Blocks until a whole frame has arrived.
+     */
+    public void read(SocketChannel channel) throws IOException {
+        if (this.buffer.remaining() < FRAME_SIZE) {
+            this.buffer.compact();
+            while (this.buffer.position() < FRAME_SIZE) {
+                if (channel.read(this.buffer) < 0)
+                    throw new EOFException("Ack connection closed by receiver");
+            }
+            this.buffer.flip();
+        }
+        this.frameStart = this.buffer.position();
+        this.buffer.position(this.frameStart + FRAME_SIZE);
+    }
+
+    public int getSequenceNumber() {
+        return this.buffer.getInt(this.frameStart + SEQ_NUM_INDEX);
+    }
+
+    public int getAckNumber() {
+        return this.buffer.getInt(this.frameStart + ACK_NUM_INDEX);
+    }
+
+    public byte getFlag() {
+        return this.buffer.get(this.frameStart + FLAG_INDEX);
+    }
+
+    public short getWindow() {
+        return this.buffer.getShort(this.frameStart + WINDOW_INDEX);
+    }
+
+    public int getSackBlockCount() {
+        return Math.min(MAX_SACK_BLOCKS, this.buffer.get(this.frameStart + SACK_COUNT_INDEX));
+    }
+
+    public int getSackLeftEdge(int block) {
+        return this.buffer.getInt(this.frameStart + SACK_INDEX + block * SACK_BLOCK_SIZE);
+    }
+
+    public int getSackRightEdge(int block) {
+        return this.buffer.getInt(this.frameStart + SACK_INDEX + block * SACK_BLOCK_SIZE + 4);
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Binary form of the sender and receiver log, written to a memory mapped
+ * file and turned back into text by LogConverter.
+ *
+ * File layout (big endian):
+ *    0  magic "TLOG"
+ *    4  version
+ *    6  record size
+ *    8  number of endpoints
+ *   12  number of records, written whenever a new region is mapped and
+ *       on close
+ * 4096  records
+ *
+ * Record layout:
+ *  0  timestamp, nanoseconds since the epoch
+ *  8  sequence number
+ * 12  ack number
+ * 16  estimated RTT in ms
+ * 24  type, 0 Sent, 1 Received
+ * 25  1 when the RTT is part of the message (sender side)
+ * 26  flags
+ * 28  number of the endpoint, the source and destination pair
+ *
+ * An endpoint is defined in the records themselves, just before its
+ * first use, so a long running server can log any number of
+ * connections. The definition is a record of type 2:
+ *  0  timestamp
+ *  8  number of the endpoint
+ * 12  length of the source, 14 length of the destination
+ * 24  type, 2
+ * followed by records of type 3 that hold the source and destination in
+ * UTF-8, ENDPOINT_DATA_SIZE bytes each, in bytes 0 to 23. Endpoints are
+ * numbered in the order they are defined.
+ *
+ * The writer finds the number of an endpoint in a map by source and then
+ * destination, the sender and receiver pass the same strings for every
+ * message so the hash codes are cached. When the map holds MAX_ENDPOINTS
+ * it is cleared, a pair used again after that is defined again under a
+ * new number.
+ */
+public class BinaryLog {
+    public final static int MAGIC = 0x544c4f47;
+    public final static short VERSION = 2;
+    public final static int RECORD_SIZE = 32;
+    public final static int DATA_START = 4096;
+    public final static byte TYPE_SENT = 0;
+    public final static byte TYPE_RECEIVED = 1;
+    public final static byte TYPE_ENDPOINT = 2;
+    public final static byte TYPE_ENDPOINT_DATA = 3;
+    private final static int TYPE_INDEX = 24;
+    private final static int ENDPOINT_DATA_SIZE = 24;
+    private final static int MAX_ENDPOINTS = 4096;
+    private final static int ENDPOINT_COUNT_INDEX = 8;
+    private final static int RECORD_COUNT_INDEX = 12;
+    private final static long REGION_SIZE = 64L * 1024 * 1024;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long recordCount;
+    private int endpointCount;
+    private HashMap<String, HashMap<String, Integer>> endpoints;
+    private int endpointsInMap;
+    private ArrayList<String> sources;
+    private ArrayList<String> destinations;
+    private long startMillis;
+    private long startNanos;
+
+    public BinaryLog() {
+        this.channel = null;
+        this.header = null;
+        this.region = null;
+        this.regionStart = 0;
+        this.recordCount = 0;
+        this.endpointCount = 0;
+        this.endpoints = new HashMap<String, HashMap<String, Integer>>();
+        this.endpointsInMap = 0;
+        this.sources = new ArrayList<String>();
+        this.destinations = new ArrayList<String>();
+        this.startMillis = 0;
+        this.startNanos = 0;
+    }
+
+    /*
+     * Create the log file for writing, an existing file is replaced.
+     */
+    public void create(String filename) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_START);
+        this.header.putInt(0, MAGIC);
+        this.header.putShort(4, VERSION);
+        this.header.putShort(6, (short) RECORD_SIZE);
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        mapRegion(DATA_START);
+    }
+
+    private void mapRegion(long start) throws IOException {
+        this.header.putLong(RECORD_COUNT_INDEX, this.recordCount);
+        this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+        this.regionStart = start;
+    }
+
+    public synchronized void append(boolean isSender, byte type, String source,
+            String destination, int seqNum, int ackNum, byte flag, long estimatedRTT)
+            throws IOException {
+        int endpoint = findEndpoint(source, destination);
+        int index = nextRecord();
+        this.region.putLong(index, getTime());
+        this.region.putInt(index + 8, seqNum);
+        this.region.putInt(index + 12, ackNum);
+        this.region.putLong(index + 16, estimatedRTT);
+        this.region.put(index + TYPE_INDEX, type);
+        this.region.put(index + 25, (byte) (isSender ? 1 : 0));
+        this.region.put(index + 26, flag);
+        this.region.putInt(index + 28, endpoint);
+    }
+
+    /*
+     * Offset in the current region of a new record at the end of the log.
+     */
+    private int nextRecord() throws IOException {
+        long position = DATA_START + this.recordCount * RECORD_SIZE;
+        if (position + RECORD_SIZE > this.regionStart + REGION_SIZE)
+            mapRegion(position);
+        this.recordCount++;
+        return (int) (position - this.regionStart);
+    }
+
+    private long getTime() {
+        return this.startMillis * 1000000L + (System.nanoTime() - this.startNanos);
+    }
+
+    private int findEndpoint(String source, String destination) throws IOException {
+        HashMap<String, Integer> bySource = this.endpoints.get(source);
+        if (bySource != null) {
+            Integer endpoint = bySource.get(destination);
+            if (endpoint != null)
+                return endpoint;
+        }
+        if (this.endpointsInMap == MAX_ENDPOINTS) {
+            this.endpoints.clear();
+            this.endpointsInMap = 0;
+            bySource = null;
+        }
+        if (bySource == null) {
+            bySource = new HashMap<String, Integer>();
+            this.endpoints.put(source, bySource);
+        }
+        int endpoint = defineEndpoint(source, destination);
+        bySource.put(destination, endpoint);
+        this.endpointsInMap++;
+        return endpoint;
+    }
+
+    /*
+     * Write the definition of a new endpoint, returns its number.
+     */
+    private int defineEndpoint(String source, String destination) throws IOException {
+        byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+        byte[] destBytes = destination.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[sourceBytes.length + destBytes.length];
+        System.arraycopy(sourceBytes, 0, data, 0, sourceBytes.length);
+        System.arraycopy(destBytes, 0, data, sourceBytes.length, destBytes.length);
+
+        int endpoint = this.endpointCount++;
+        int index = nextRecord();
+        this.region.putLong(index, getTime());
+        this.region.putInt(index + 8, endpoint);
+        this.region.putShort(index + 12, (short) sourceBytes.length);
+        this.region.putShort(index + 14, (short) destBytes.length);
+        this.region.put(index + TYPE_INDEX, TYPE_ENDPOINT);
+        for (int start = 0; start < data.length; start += ENDPOINT_DATA_SIZE) {
+            index = nextRecord();
+            int length = Math.min(ENDPOINT_DATA_SIZE, data.length - start);
+            for (int i = 0; i < length; i++)
+                this.region.put(index + i, data[start + i]);
+            this.region.put(index + TYPE_INDEX, TYPE_ENDPOINT_DATA);
+        }
+        this.header.putInt(ENDPOINT_COUNT_INDEX, this.endpointCount);
+        return endpoint;
+    }
+
+    /*
+     * Record the final count and cut the unused end of the last region.
+     */
+    public synchronized void close() throws IOException {
+        if (this.channel == null)
+            return;
+        this.header.putLong(RECORD_COUNT_INDEX, this.recordCount);
+        this.header.force();
+        this.region.force();
+        this.header = null;
+        this.region = null;
+        this.channel.truncate(DATA_START + this.recordCount * RECORD_SIZE);
+        this.channel.close();
+        this.channel = null;
+    }
+
+    /*
+     * Open an existing log for reading. Records are mapped one region at
+     * a time as they are read.
+     */
+    public void open(String filename) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        if (this.channel.size() < DATA_START)
+            throw new IOException("Not a binary log: " + filename);
+        this.header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, DATA_START);
+        if (this.header.getInt(0) != MAGIC || this.header.getShort(4) != VERSION
+                || this.header.getShort(6) != RECORD_SIZE)
+            throw new IOException("Not a binary log: " + filename);
+        this.recordCount = this.header.getLong(RECORD_COUNT_INDEX);
+        this.regionStart = -1;
+
+        // A log that was not closed holds more records than its header
+        // says, followed by the zeros of the mapped region.
+        long written = (this.channel.size() - DATA_START) / RECORD_SIZE;
+        this.recordCount = Math.min(this.recordCount, written);
+        while (this.recordCount < written && getTimestamp(seek(this.recordCount)) != 0)
+            this.recordCount++;
+        readEndpoints();
+    }
+
+    /*
+     * Collect the endpoint definitions spread over the records, so any
+     * record can be read on its own afterwards.
+     */
+    private void readEndpoints() throws IOException {
+        for (long i = 0; i < this.recordCount; i++) {
+            int record = seek(i);
+            if (this.region.get(record + TYPE_INDEX) != TYPE_ENDPOINT)
+                continue;
+            int endpoint = this.region.getInt(record + 8);
+            int sourceLength = this.region.getShort(record + 12) & 0xffff;
+            byte[] data = new byte[sourceLength + (this.region.getShort(record + 14) & 0xffff)];
+            for (int start = 0; start < data.length && i + 1 < this.recordCount;
+                    start += ENDPOINT_DATA_SIZE) {
+                record = seek(++i);
+                int length = Math.min(ENDPOINT_DATA_SIZE, data.length - start);
+                for (int j = 0; j < length; j++)
+                    data[start + j] = this.region.get(record + j);
+            }
+            while (this.sources.size() <= endpoint) {
+                this.sources.add(null);
+                this.destinations.add(null);
+            }
+            this.sources.set(endpoint, new String(data, 0, sourceLength, StandardCharsets.UTF_8));
+            this.destinations.set(endpoint, new String(data, sourceLength,
+                    data.length - sourceLength, StandardCharsets.UTF_8));
+        }
+        this.endpointCount = this.sources.size();
+    }
+
+    /*
+     * Whether the record is a message, not part of an endpoint definition.
+     */
+    public boolean isMessage(int offset) {
+        byte type = this.region.get(offset + TYPE_INDEX);
+        return type == TYPE_SENT || type == TYPE_RECEIVED;
+    }
+
+    /*
+     * Offset of the given record in the current read region, mapping the
+     * region that holds it first.
+     */
+    public int seek(long record) throws IOException {
+        long position = DATA_START + record * RECORD_SIZE;
+        if (this.regionStart < 0 || position < this.regionStart
+                || position + RECORD_SIZE > this.regionStart + REGION_SIZE) {
+            long size = Math.min(REGION_SIZE, this.channel.size() - position);
+            this.region = this.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            this.regionStart = position;
+        }
+        return (int) (position - this.regionStart);
+    }
+
+    public void closeReader() throws IOException {
+        this.region = null;
+        this.header = null;
+        this.channel.close();
+    }
+
+    public long getRecordCount() {
+        return this.recordCount;
+    }
+
+    public long getTimestamp(int offset) {
+        return this.region.getLong(offset);
+    }
+
+    public int getSequenceNumber(int offset) {
+        return this.region.getInt(offset + 8);
+    }
+
+    public int getAckNumber(int offset) {
+        return this.region.getInt(offset + 12);
+    }
+
+    public long getEstimatedRTT(int offset) {
+        return this.region.getLong(offset + 16);
+    }
+
+    public byte getType(int offset) {
+        return this.region.get(offset + 24);
+    }
+
+    public boolean isSender(int offset) {
+        return this.region.get(offset + 25) != 0;
+    }
+
+    public byte getFlag(int offset) {
+        return this.region.get(offset + 26);
+    }
+
+    public String getSource(int offset) {
+        return this.sources.get(this.region.getInt(offset + 28));
+    }
+
+    public String getDestination(int offset) {
+        return this.destinations.get(this.region.getInt(offset + 28));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Congestion control of the TCP sender.
+ *
+ * The controller is told about every ack, duplicate ack and timeout and
+ * answers with the congestion window, the number of segments the sender
+ * may have in flight. The sender caps it with its own window size.
+ */
+public interface CongestionController {
+
+    /*
+     * The window moved over ackedSegments segments, rtt is the current
+     * estimated round trip time in ms.
+     */
+    void onAck(int ackedSegments, long rtt);
+
+    /*
+     * An ack arrived that did not move the window, duplicateAcks counts
+     * them since the window last moved.
+     */
+    void onDuplicateAck(int duplicateAcks);
+
+    /*
+     * The retransmission timer expired.
+     */
+    void onTimeout();
+
+    /*
+     * Congestion window in segments, at least 1.
+     */
+    int getWindow();
+}
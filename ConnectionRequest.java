@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Data of the SYN datagram the sender opens a connection with, written by
+ * the TCP sender and read by the TCP receiver.
+ *
+ * Layout (big endian):
+ *  0  port the sender accepts the ack connection on
+ *  2  loss recovery mode, 0 Go-Back-N, 1 Selective Repeat
+ *  3  reserved
+ *  4  length of the whole file
+ * 12  offset in the file of the first byte sent, more than 0 for the
+ *     later stripes of a striped transfer
+ * 20  segment size, the number of data bytes in every segment but the
+ *     last
+ * 22  length of the file name, followed by the name in UTF-8
+ */
+public class ConnectionRequest {
+    private final static int NAME_INDEX = 24;
+    private int ackPort;
+    private boolean selectiveRepeat;
+    private long fileLength;
+    private long offset;
+    private int segmentSize;
+    private String filename;
+
+    public ConnectionRequest() {
+        this.ackPort = 0;
+        this.selectiveRepeat = false;
+        this.fileLength = 0;
+        this.offset = 0;
+        this.segmentSize = 0;
+        this.filename = null;
+    }
+
+    /*
+     * Write the request into the buffer at the given offset, returns the
+     * number of bytes written or -1 when it does not fit.
+     */
+    public int write(byte[] buffer, int offset) {
+        byte[] name = this.filename.getBytes(StandardCharsets.UTF_8);
+        if (NAME_INDEX + name.length > buffer.length - offset)
+            return -1;
+        ByteBuffer data = ByteBuffer.wrap(buffer, offset, NAME_INDEX + name.length);
+        data.putShort((short) this.ackPort);
+        data.put((byte) (this.selectiveRepeat ? 1 : 0));
+        data.put((byte) 0);
+        data.putLong(this.fileLength);
+        data.putLong(this.offset);
+        data.putShort((short) this.segmentSize);
+        data.putShort((short) name.length);
+        data.put(name);
+        return NAME_INDEX + name.length;
+    }
+
+    /*
+     * Read the request from the data of a SYN datagram, the data runs from
+     * offset to the limit of the buffer. Returns false if it is malformed.
+     */
+    public boolean read(ByteBuffer segment, int offset) {
+        int length = segment.limit() - offset;
+        if (length < NAME_INDEX)
+            return false;
+        int nameLength = segment.getShort(offset + 22) & 0xffff;
+        if (NAME_INDEX + nameLength > length)
+            return false;
+        this.ackPort = segment.getShort(offset) & 0xffff;
+        this.selectiveRepeat = segment.get(offset + 2) == 1;
+        this.fileLength = segment.getLong(offset + 4);
+        this.offset = segment.getLong(offset + 12);
+        this.segmentSize = segment.getShort(offset + 20) & 0xffff;
+        byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++)
+            name[i] = segment.get(offset + NAME_INDEX + i);
+        this.filename = new String(name, StandardCharsets.UTF_8);
+        return this.fileLength >= 0 && this.offset >= 0 && this.offset <= this.fileLength;
+    }
+
+    public void setAckPort(int ackPort) {
+        this.ackPort = ackPort;
+    }
+
+    public void setSelectiveRepeat(boolean selectiveRepeat) {
+        this.selectiveRepeat = selectiveRepeat;
+    }
+
+    public void setFileLength(long fileLength) {
+        this.fileLength = fileLength;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public int getAckPort() {
+        return this.ackPort;
+    }
+
+    public boolean isSelectiveRepeat() {
+        return this.selectiveRepeat;
+    }
+
+    public long getFileLength() {
+        return this.fileLength;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * CUBIC congestion control (RFC 8312).
+ *
+ * After a loss the window grows along a cubic function of the time since
+ * the loss, flat around the window where the loss happened (wMax) and
+ * fast away from it, so it recovers quickly on paths with a large
+ * bandwidth-delay product. It never grows slower than Reno would
+ * (the TCP friendly region). Below the slow start threshold it uses
+ * slow start like Reno.
+ */
+public class CubicController implements CongestionController {
+    private final static int DUPLICATE_ACK_THRESHOLD = 3;
+    private final static double C = 0.4;
+    private final static double BETA = 0.7;
+    private final static double MIN_SSTHRESH = 2;
+    private double congestionWindow;
+    private double slowStartThreshold;
+    private double windowMax;
+    private double k;
+    private long epochStart;
+    private boolean fastRecovery;
+
+    public CubicController(int maxWindow) {
+        this.congestionWindow = 1;
+        this.slowStartThreshold = Math.max(MIN_SSTHRESH, maxWindow);
+        this.windowMax = 0;
+        this.k = 0;
+        this.epochStart = 0;
+        this.fastRecovery = false;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long rtt) {
+        if (this.fastRecovery) {
+            this.fastRecovery = false;
+            this.congestionWindow = this.slowStartThreshold;
+            return;
+        }
+
+        if (this.congestionWindow < this.slowStartThreshold) {
+            this.congestionWindow += ackedSegments;
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (this.epochStart == 0) {
+            // First ack of a congestion avoidance epoch
+            this.epochStart = now;
+            if (this.windowMax < this.congestionWindow) {
+                this.k = 0;
+                this.windowMax = this.congestionWindow;
+            } else {
+                this.k = Math.cbrt(this.windowMax * (1 - BETA) / C);
+            }
+        }
+
+        double rttSeconds = Math.max(1, rtt) / 1000.0;
+        double t = (now - this.epochStart) / 1e9;
+        double cubicTarget = C * Math.pow(t + rttSeconds - this.k, 3) + this.windowMax;
+        double renoEstimate = this.windowMax * BETA
+                + 3 * (1 - BETA) / (1 + BETA) * (t / rttSeconds);
+        double target = Math.max(cubicTarget, renoEstimate);
+
+        if (target > this.congestionWindow)
+            this.congestionWindow += ackedSegments * (target - this.congestionWindow) / this.congestionWindow;
+        else this.congestionWindow += ackedSegments * 0.01 / this.congestionWindow;
+    }
+
+    @Override
+    public void onDuplicateAck(int duplicateAcks) {
+        if (duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+            reduceWindow();
+            this.congestionWindow = this.slowStartThreshold;
+            this.fastRecovery = true;
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        reduceWindow();
+        this.congestionWindow = 1;
+        this.fastRecovery = false;
+    }
+
+    private void reduceWindow() {
+        this.epochStart = 0;
+        this.windowMax = this.congestionWindow;
+        this.slowStartThreshold = Math.max(MIN_SSTHRESH, this.congestionWindow * BETA);
+    }
+
+    @Override
+    public int getWindow() {
+        return Math.max(1, (int) this.congestionWindow);
+    }
+}
@@ -9,18 +9,21 @@ import java.util.ArrayList;
  * Used by TCP receiver only.
  */
 public class DatagramExtractor {
-    private final static int HEADER_SIZE = 20;
-    private final static int INT_BYTE_SIZE = 4;
-    private final static int PACKET_SIZE = 576;
-    private final static int SHORT_BYTE_SIZE = 2;
+    public final static int HEADER_SIZE = 24;
+    // The largest UDP payload over IPv4, any segment size fits.
+    public final static int MAX_DATAGRAM_SIZE = 65507;
+    // Receive buffer of the socket, the kernel may give less.
+    public final static int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
     private ArrayList<byte[]> headers;
     private ArrayList<byte[]> messages;
     private ArrayList<byte[]> data;
+    private SegmentChecksum checksum;
 
     public DatagramExtractor() {
         this.headers = null;
         this.messages = null;
         this.data = null;
+        this.checksum = new SegmentChecksum();
     }
 
     public void setUp() {
@@ -29,21 +32,19 @@ public class DatagramExtractor {
         this.data = new ArrayList<byte[]>();
     }
 
-    public int retrieveOriginalSize(byte[] segment) {
-        short sourcePort = extractSourcePortFromHeader(segment);
-        short destPort = extractDestPortFromHeader(segment);
-        short windowSize = extractWindowSizeFromHeader(segment);
-        short checksumValue = extractChecksumFromHeader(segment);
-        short urgentSize = extractUrgentFromHeader(segment);
-        
-        short inverseChecksum = (short) ~checksumValue;
-        int originSize = inverseChecksum - (sourcePort + destPort + windowSize + urgentSize + HEADER_SIZE);
-        return originSize;
+    /*
+     * Length of the datagram, header included, as given in its header.
+     * Returns -1 when the header is not one of ours.
+     */
+    public int retrieveOriginalSize(ByteBuffer segment) {
+        if ((segment.get(12) & 0xf0) != HEADER_SIZE / 4 << 4)
+            return -1;
+        return extractLengthFromHeader(segment);
     }
 
     public void extractMessagesFromSocket(DatagramSocket socket)
             throws IOException {
-        byte[] receiveBuffer = new byte[PACKET_SIZE];
+        byte[] receiveBuffer = new byte[MAX_DATAGRAM_SIZE];
         DatagramPacket packet = new DatagramPacket(receiveBuffer,
                 receiveBuffer.length);
         socket.receive(packet);
@@ -59,82 +60,60 @@ public class DatagramExtractor {
         this.headers.add(header);
     }
 
-    public byte[] extractDataFromMessage(byte[] message) {
-        int dataSize = message.length - HEADER_SIZE;
-        byte[] data = new byte[dataSize];
-        System.arraycopy(message, 20, data, 0, dataSize);
-        return data;
+    /*
+     * The header fields below are read in place from the segment buffer,
+     * which holds one segment from index 0 up to its limit.
+     */
+    public int getDataLength(ByteBuffer segment) {
+        return segment.limit() - HEADER_SIZE;
     }
 
-    public short extractSourcePortFromHeader(byte[] header) {
-        byte[] sourceByteArray = new byte[SHORT_BYTE_SIZE];
-        System.arraycopy(header, 0, sourceByteArray, 0, SHORT_BYTE_SIZE);
-        return convertByteArrayToShort(sourceByteArray, ByteOrder.BIG_ENDIAN);
+    public short extractSourcePortFromHeader(ByteBuffer header) {
+        return header.getShort(0);
     }
 
-    public short extractDestPortFromHeader(byte[] header) {
-        byte[] destByteArray = new byte[SHORT_BYTE_SIZE];
-        System.arraycopy(header, 2, destByteArray, 0, SHORT_BYTE_SIZE);
-        return convertByteArrayToShort(destByteArray, ByteOrder.BIG_ENDIAN);
+    public short extractDestPortFromHeader(ByteBuffer header) {
+        return header.getShort(2);
     }
 
-    public short extractWindowSizeFromHeader(byte[] header) {
-        byte[] windowByteArray = new byte[SHORT_BYTE_SIZE];
-        System.arraycopy(header, 14, windowByteArray, 0, SHORT_BYTE_SIZE);
-        return convertByteArrayToShort(windowByteArray, ByteOrder.BIG_ENDIAN);
+    public short extractWindowSizeFromHeader(ByteBuffer header) {
+        return header.getShort(14);
     }
 
-    public short extractChecksumFromHeader(byte[] header) {
-        byte[] checksumArray = new byte[SHORT_BYTE_SIZE];
-        System.arraycopy(header, 16, checksumArray, 0, SHORT_BYTE_SIZE);
-        return convertByteArrayToShort(checksumArray, ByteOrder.BIG_ENDIAN);
+    public int extractLengthFromHeader(ByteBuffer header) {
+        return header.getShort(16) & 0xffff;
     }
 
-    public short extractUrgentFromHeader(byte[] header) {
-        byte[] urgentArray = new byte[SHORT_BYTE_SIZE];
-        System.arraycopy(header, 18, urgentArray, 0, SHORT_BYTE_SIZE);
-        return convertByteArrayToShort(urgentArray, ByteOrder.BIG_ENDIAN);
+    public int extractChecksumFromHeader(ByteBuffer header) {
+        return header.getInt(SegmentChecksum.CHECKSUM_INDEX);
     }
 
-    public boolean checkCheckSum(byte[] segment) {
-        short segmentSize = new Integer(segment.length).shortValue();
-        short sourcePort = extractSourcePortFromHeader(segment);
-        short destPort = extractDestPortFromHeader(segment);
-        short windowNum = extractWindowSizeFromHeader(segment);
-        short checkNum = extractChecksumFromHeader(segment);
-        short urgent = extractUrgentFromHeader(segment);
-
-        int checksumValue = segmentSize + sourcePort + destPort + windowNum + urgent;
-        short inverseCheckSum = (short) ~checksumValue;
-        return inverseCheckSum == checkNum ? true : false;
+    public byte extractChecksumAlgorithmFromHeader(ByteBuffer header) {
+        return (byte) (header.get(12) & 0x0f);
     }
 
-    private short convertByteArrayToShort(byte[] byteArray, ByteOrder order) {
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        buffer.order(order);
-        return buffer.getShort();
+    public short extractUrgentFromHeader(ByteBuffer header) {
+        return header.getShort(18);
     }
 
-    public int extractSequenceNumberFromHeader(byte[] header) {
-        byte[] sequenceNumber = new byte[INT_BYTE_SIZE];
-        System.arraycopy(header, 4, sequenceNumber, 0, INT_BYTE_SIZE);
-        return convertByteArrayToInt(sequenceNumber, ByteOrder.BIG_ENDIAN);
+    /*
+     * Check header and data against the checksum, with the algorithm the
+     * sender picked.
+     */
+    public boolean checkCheckSum(ByteBuffer segment) {
+        return this.checksum.verify(extractChecksumAlgorithmFromHeader(segment), segment);
     }
 
-    public int extractAckNumberFromHeader(byte[] header) {
-        byte[] ackNumber = new byte[INT_BYTE_SIZE];
-        System.arraycopy(header, 8, ackNumber, 0, INT_BYTE_SIZE);
-        return convertByteArrayToInt(ackNumber, ByteOrder.BIG_ENDIAN);
+    public int extractSequenceNumberFromHeader(ByteBuffer header) {
+        return header.getInt(4);
     }
 
-    public byte extractFlagsFromHeader(byte[] header) {
-        return header[13];
+    public int extractAckNumberFromHeader(ByteBuffer header) {
+        return header.getInt(8);
     }
 
-    private int convertByteArrayToInt(byte[] byteArray, ByteOrder order) {
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        buffer.order(order);
-        return buffer.getInt();
+    public byte extractFlagsFromHeader(ByteBuffer header) {
+        return header.get(13);
     }
 
     public void setHeaders(ArrayList<byte[]> headers) {
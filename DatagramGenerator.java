@@ -1,102 +1,243 @@
 import java.io.*;
 import java.nio.*;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /*
- * Generate the datagrams from the specfied file for transmission 
+ * Generate the datagrams from the specfied file for transmission,
+ * one segment at a time as the send window needs them.
  * 
  * Used by TCP sender only.
+ *
+ * For zero copy sending the file is memory mapped instead, and only the
+ * header of a datagram is built in the buffer. The header and a slice of
+ * the mapped file are then written together as one datagram with a
+ * gathering write, so the data never passes through the Java heap. The
+ * file is mapped in regions of whole segments, since one mapping is
+ * limited to 2 GB.
  */
 public class DatagramGenerator {
 	private final static int SHORT_BYTE_SIZE = 2;
     private final static int INT_BYTE_SIZE = 4;
-    private final static int HEADER_BYTE_SIZE = 20;
+    private final static int HEADER_BYTE_SIZE = 24;
+    private final static int REGION_SIZE = 1 << 30;
+    private final static ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
     private final byte ackFinFlag = 17;
     private final byte ackFlag = 16;
-    private final int MSS = 556;
+    private final byte synFlag = 2;
+    // Keeps a whole datagram within the 576 bytes every host must accept.
+    public final static int DEFAULT_MSS = 552;
+    // The largest UDP payload over IPv4, less the header.
+    public final static int MAX_MSS = 65507 - HEADER_BYTE_SIZE;
+    // The window field of the header is a signed 16 bit number.
+    public final static int MAX_WINDOW_SIZE = Short.MAX_VALUE;
     private final byte[] urgentPointer = new byte[2];
-    private final byte dataOffsetReservedNS = 80;
-    private ArrayList<byte[]> segments;
-    private ArrayList<byte[]> datagrams;
-    private ArrayList<byte[]> headers;
-    private int sequenceRange;
-    private int seqNum;
-    private int ackNum;
+    // Header length of 6 32 bit words, the checksum algorithm goes in bit 0.
+    private final byte dataOffsetReservedNS = 96;
+    private FileChannel fileChannel;
+    private long fileLength;
+    private long fileSize;
+    private long rangeStart;
+    private long rangeLength;
+    private int segmentCount;
+    private byte[] source;
+    private byte[] destination;
+    private byte[] windowSize;
+    private int initialSequenceNumber;
+    private byte checksumAlgorithm;
+    private SegmentChecksum checksum;
+    private int mss;
+    private boolean zeroCopy;
+    private ByteBuffer[] regions;
+    private int regionSegments;
+    private ByteBuffer[] gather;
 
     public DatagramGenerator() {
-    	this.segments = null;
-        this.datagrams = null;
-        this.headers = null;
-        this.sequenceRange = 2;
-        this.seqNum = 0;
-        this.ackNum = 0;
-    }
-
-    public ArrayList<byte[]> generateDatagram(int sourcePort, int destinationPort, 
-    	int sequenceRange, String filename) throws IOException {
-    	this.sequenceRange = sequenceRange;
-    	byte[] fileBytes = convertFileToByte(filename);
-    	this.segments = convertFileToSegments(fileBytes);
-    	generateTCPsegments(sourcePort, destinationPort);
-    	return this.datagrams;
-    }
-
-    private byte[] convertFileToByte(String filename) throws IOException {
-    	File file = new File(filename);
-    	FileInputStream fis = new FileInputStream(file);
-    	byte[] data = new byte[(int)file.length()];
-    	fis.read(data);
-    	fis.close();
-    	return data;
-    }
-
-    private ArrayList<byte[]> convertFileToSegments(byte[] file) {
-    	ArrayList<byte[]> segments = new ArrayList<byte[]>();
-    	byte[] segment = new byte[MSS];
-    	for (int i = 0; i < file.length; i++) {
-    		if (i % MSS == 0) {
-    			segments.add(segment);
-    			segment = new byte[MSS];
-    		}
-    		segment[i % MSS] = file[i];
+    	this.fileChannel = null;
+        this.fileLength = 0;
+        this.fileSize = 0;
+        this.rangeStart = 0;
+        this.rangeLength = -1;
+        this.segmentCount = 0;
+        this.source = null;
+        this.destination = null;
+        this.windowSize = null;
+        this.initialSequenceNumber = SequenceNumber.INITIAL_SEQUENCE_NUMBER;
+        this.checksumAlgorithm = SegmentChecksum.CRC32C;
+        this.checksum = new SegmentChecksum();
+        this.mss = DEFAULT_MSS;
+        this.zeroCopy = false;
+        this.regions = null;
+        this.regionSegments = 0;
+        this.gather = new ByteBuffer[2];
+    }
+
+    /*
+     * Send only the given byte range of the file, which is cut at the end
+     * of the file. Segments are numbered from the start of the range. A
+     * length of -1 is up to the end of the file, the default.
+     */
+    public void setRange(long rangeStart, long rangeLength) {
+        this.rangeStart = rangeStart;
+        this.rangeLength = rangeLength;
+    }
+
+    /*
+     * Open the file for streaming, a segment is only read from it when
+     * generateDatagram is called for it.
+     */
+    public void setUp(int sourcePort, int destinationPort, int windowSize,
+    	String filename) throws IOException {
+    	this.fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+    	this.fileSize = this.fileChannel.size();
+    	this.fileLength = Math.max(0, this.fileSize - this.rangeStart);
+    	if (this.rangeLength >= 0)
+    		this.fileLength = Math.min(this.fileLength, this.rangeLength);
+
+    	// An empty file still needs one segment to carry the FIN flag.
+    	long count = Math.max(1, (this.fileLength + this.mss - 1) / this.mss);
+    	if (count > Integer.MAX_VALUE)
+    		throw new IOException("File is too large to be sent: " + filename);
+    	this.segmentCount = (int) count;
+    	if (this.zeroCopy)
+    		mapRegions();
+
+    	this.source = convertIntToByte(sourcePort, ByteOrder.BIG_ENDIAN);
+    	this.destination = convertIntToByte(destinationPort, ByteOrder.BIG_ENDIAN);
+    	this.windowSize = convertShortToByte((short) windowSize, ByteOrder.BIG_ENDIAN);
+    }
+
+    private void mapRegions() throws IOException {
+    	this.regionSegments = REGION_SIZE / this.mss;
+    	long regionBytes = (long) this.regionSegments * this.mss;
+    	int count = (int) ((this.fileLength + regionBytes - 1) / regionBytes);
+    	this.regions = new ByteBuffer[count];
+    	for (int i = 0; i < count; i++) {
+    		long start = i * regionBytes;
+    		this.regions[i] = this.fileChannel.map(FileChannel.MapMode.READ_ONLY,
+    			this.rangeStart + start, Math.min(regionBytes, this.fileLength - start));
+    	}
+    }
+
+    /*
+     * Sequence number of the first byte of the segment at the given index.
+     */
+    public int getSequenceNumber(int index) {
+    	return SequenceNumber.add(this.initialSequenceNumber, (long) index * this.mss);
+    }
+
+    /*
+     * Index of the segment starting at the given sequence number, or -1 if
+     * it lies before the segment at fromIndex or is not a segment start.
+     */
+    public int getSegmentIndex(int fromIndex, int seqNum) {
+    	int distance = SequenceNumber.distance(getSequenceNumber(fromIndex), seqNum);
+    	if (distance < 0 || distance % this.mss != 0)
+    		return -1;
+    	return fromIndex + distance / this.mss;
+    }
+
+    /*
+     * Index of the first segment not covered by a cumulative ack number,
+     * counting from sendBase. The FIN flag takes one sequence number, so
+     * the last segment is only covered once the ack is past the file end.
+     */
+    public int getFirstUnackedSegment(int sendBase, int ackNum) {
+    	int acked = SequenceNumber.distance(getSequenceNumber(sendBase), ackNum);
+    	if (acked <= 0)
+    		return sendBase;
+
+    	long ackOffset = (long) sendBase * this.mss + acked;
+    	if (ackOffset > this.fileLength)
+    		return this.segmentCount;
+    	return (int) Math.min(ackOffset / this.mss, this.segmentCount - 1);
+    }
+
+    /*
+     * Build the datagram of the segment at the given index into the
+     * buffer, which must hold at least getBufferSize() bytes. With zero
+     * copy that is only the header. Returns the length of the datagram.
+     */
+    public int generateDatagram(int index, byte[] datagram) throws IOException {
+    	long offset = (long) index * this.mss;
+    	int length = (int) Math.min(this.mss, this.fileLength - offset);
+
+    	byte flag = index == this.segmentCount - 1 ? ackFinFlag : ackFlag;
+    	generateTCPheader(getSequenceNumber(index), flag, datagram, HEADER_BYTE_SIZE + length);
+    	if (this.zeroCopy) {
+    		calculateCheckSum(datagram, getPayload(index));
+    		return HEADER_BYTE_SIZE + length;
     	}
-    	segments.remove(0);
-    	byte[] lastSegment = new byte[file.length % MSS];
-    	System.arraycopy(file, segments.size() * MSS, lastSegment, 0, lastSegment.length);
-    	segments.add(lastSegment);
-    	return segments;
-    }
-
-    private void generateTCPsegments(int sourcePort, int destinationPort) {
-    	generateTCPheaders(sourcePort, destinationPort);
-    	combineHeadersAndSegments();
-    }
-
-    private void generateTCPheaders(int sourcePort, int destinationPort) {
-    	this.headers = new ArrayList<byte[]>();
-    	int lastHeader = this.segments.size() - 1;
-
-    	byte[] source = convertIntToByte(sourcePort, ByteOrder.BIG_ENDIAN);
-    	byte[] destination = convertIntToByte(destinationPort, ByteOrder.BIG_ENDIAN);
-    	byte[] windowSize = convertShortToByte((short)(this.sequenceRange / 2), ByteOrder.BIG_ENDIAN);
-    	System.out.println("windowSize: " + (this.sequenceRange / 2));
-    	for (int i = 0; i < this.segments.size(); i++) {
-    		byte[] header = new byte[HEADER_BYTE_SIZE];
-    		byte[] seqNumber = convertIntToByte(this.seqNum, ByteOrder.BIG_ENDIAN);
-            byte[] ackNumber = convertIntToByte(this.ackNum, ByteOrder.BIG_ENDIAN);
-            if (i == lastHeader)
-            	header[13] = ackFinFlag;
-           	else header[13] = ackFlag;
-
-           	header = setTCPheader(header, source, destination, seqNumber, ackNumber, windowSize);
-           	this.headers.add(header);
-           	this.seqNum = (this.seqNum + 1) % this.sequenceRange;
-           	//System.out.println("seqNum: " + this.seqNum);
-           	this.ackNum = (this.ackNum + 1) % this.sequenceRange;
-           	//System.out.println("ackNum: " + this.ackNum);
+    	readSegment(this.rangeStart + offset, datagram, length);
+    	calculateCheckSum(datagram, HEADER_BYTE_SIZE + length);
+    	return HEADER_BYTE_SIZE + length;
+    }
+
+    /*
+     * Zero copy: send the header in the buffer followed by the data of
+     * the segment at the given index straight from the mapped file, as
+     * one datagram on a connected channel.
+     */
+    public void writeDatagram(int index, byte[] header, GatheringByteChannel channel)
+    		throws IOException {
+    	this.gather[0] = ByteBuffer.wrap(header, 0, HEADER_BYTE_SIZE);
+    	this.gather[1] = getPayload(index);
+    	channel.write(this.gather);
+    }
+
+    /*
+     * Data of the segment at the given index, the mapped region that
+     * holds it limited to the segment. The region buffers are reused, so
+     * this is only good until the next call.
+     */
+    private ByteBuffer getPayload(int index) {
+    	if (this.fileLength == 0)
+    		return EMPTY_PAYLOAD;
+    	ByteBuffer payload = this.regions[index / this.regionSegments];
+    	int start = (index % this.regionSegments) * this.mss;
+    	payload.limit(Math.min(payload.capacity(), start + this.mss)).position(start);
+    	return payload;
+    }
+
+    /*
+     * Build the SYN datagram that opens the connection. It carries the
+     * request as its data and takes the sequence number just before the
+     * first segment. Returns the length of the datagram.
+     */
+    public int generateSynDatagram(ConnectionRequest request, byte[] datagram)
+    		throws IOException {
+    	int length = request.write(datagram, HEADER_BYTE_SIZE);
+    	if (length < 0)
+    		throw new IOException("File name is too long: " + request.getFilename());
+    	int seqNum = SequenceNumber.add(this.initialSequenceNumber, -1);
+    	generateTCPheader(seqNum, synFlag, datagram, HEADER_BYTE_SIZE + length);
+    	calculateCheckSum(datagram, HEADER_BYTE_SIZE + length);
+    	return HEADER_BYTE_SIZE + length;
+    }
+
+    private void readSegment(long offset, byte[] datagram, int length) throws IOException {
+    	ByteBuffer buffer = ByteBuffer.wrap(datagram, HEADER_BYTE_SIZE, length);
+    	while (buffer.hasRemaining()) {
+    		long position = offset + buffer.position() - HEADER_BYTE_SIZE;
+    		if (this.fileChannel.read(buffer, position) < 0)
+    			throw new EOFException("File truncated while sending");
     	}
     }
 
+    private void generateTCPheader(int seqNum, byte flag, byte[] header, int length) {
+    	// The sender receives no data, so its ack number stays zero.
+    	byte[] seqNumber = convertIntToByte(seqNum, ByteOrder.BIG_ENDIAN);
+    	byte[] ackNumber = convertIntToByte(0, ByteOrder.BIG_ENDIAN);
+    	header[13] = flag;
+
+    	setTCPheader(header, this.source, this.destination, seqNumber, ackNumber, this.windowSize);
+    	header[12] = (byte) (dataOffsetReservedNS | this.checksumAlgorithm);
+    	header[16] = (byte) (length >>> 8);
+    	header[17] = (byte) length;
+    }
+
     private byte[] convertShortToByte(short value, ByteOrder order) {
         ByteBuffer buffer = ByteBuffer.allocate(SHORT_BYTE_SIZE);
         buffer.order(order);
@@ -121,95 +262,104 @@ public class DatagramGenerator {
         return header;
     }
 
-    private void combineHeadersAndSegments() {
-    	this.datagrams = new ArrayList<byte[]>();
-        for (int i = 0; i < this.headers.size(); i++) {
-            byte[] header = this.headers.get(i);
-            byte[] data = this.segments.get(i);
-            byte[] tcpScrap = new byte[header.length + data.length];
-            System.arraycopy(header, 0, tcpScrap, 0, header.length);
-            System.arraycopy(data, 0, tcpScrap, header.length, data.length);
-
-            byte[] tcpMessage = calculateCheckSum(tcpScrap);
-            this.datagrams.add(tcpMessage);
-        }
-    }
-
-    private byte[] calculateCheckSum(byte[] message) {
-     	byte[] sourceNumber = new byte[SHORT_BYTE_SIZE];
-        byte[] destNumber = new byte[SHORT_BYTE_SIZE];
-        byte[] windowSize = new byte[SHORT_BYTE_SIZE];
-       	
-        System.arraycopy(message, 0, sourceNumber, 0, SHORT_BYTE_SIZE);
-        System.arraycopy(message, 2, destNumber, 0, SHORT_BYTE_SIZE);
-        System.arraycopy(message, 14, windowSize, 0, SHORT_BYTE_SIZE);
-        
-        short segmentSize = new Integer(message.length).shortValue();
-        short sourcePort = convertByteArrayToShort(sourceNumber, ByteOrder.BIG_ENDIAN);
-        short destPort = convertByteArrayToShort(destNumber, ByteOrder.BIG_ENDIAN);
-        short windowNum = convertByteArrayToShort(windowSize, ByteOrder.BIG_ENDIAN);
-        short urgent = convertByteArrayToShort(urgentPointer, ByteOrder.BIG_ENDIAN);
-        int checksumValue = segmentSize + sourcePort + destPort + windowNum + urgent;
-
-        short checkShort = new Integer(checksumValue).shortValue();
-        short inverse = (short) ~checkShort;
-
-        byte[] checkSum = convertShortToByte(inverse, ByteOrder.BIG_ENDIAN);
-
-        System.arraycopy(checkSum, 0, message, 16, SHORT_BYTE_SIZE);
+    /*
+     * Checksum over header and data, written to the checksum field which
+     * has to be zero while it is calculated.
+     */
+    private byte[] calculateCheckSum(byte[] message, int length) {
+        int index = SegmentChecksum.CHECKSUM_INDEX;
+        message[index] = message[index + 1] = message[index + 2] = message[index + 3] = 0;
+        int value = this.checksum.calculate(this.checksumAlgorithm, message, length);
+        message[index] = (byte) (value >>> 24);
+        message[index + 1] = (byte) (value >>> 16);
+        message[index + 2] = (byte) (value >>> 8);
+        message[index + 3] = (byte) value;
         return message;
     }
 
-    private short convertByteArrayToShort(byte[] byteArray, ByteOrder order) {
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        return buffer.order(order).getShort();
+    /*
+     * Zero copy checksum, over the header in the buffer and the data in
+     * the mapped file.
+     */
+    private void calculateCheckSum(byte[] header, ByteBuffer payload) {
+        int index = SegmentChecksum.CHECKSUM_INDEX;
+        header[index] = header[index + 1] = header[index + 2] = header[index + 3] = 0;
+        int value = this.checksum.calculate(this.checksumAlgorithm, header,
+                HEADER_BYTE_SIZE, payload);
+        header[index] = (byte) (value >>> 24);
+        header[index + 1] = (byte) (value >>> 16);
+        header[index + 2] = (byte) (value >>> 8);
+        header[index + 3] = (byte) value;
+    }
+
+    public void close() throws IOException {
+        this.regions = null;
+        if (this.fileChannel != null)
+            this.fileChannel.close();
+    }
+
+    public void setInitialSequenceNumber(int initialSequenceNumber) {
+        this.initialSequenceNumber = initialSequenceNumber;
+    }
+
+    /*
+     * Data bytes per segment, between 1 and MAX_MSS.
+     */
+    public void setMaxSegmentSize(int mss) {
+        this.mss = Math.max(1, Math.min(MAX_MSS, mss));
     }
 
-    public void setSegments(ArrayList<byte[]> segments) {
-        this.segments = segments;
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
     }
 
-	public void setDatagrams(ArrayList<byte[]> messages) {
-        this.datagrams = datagrams;
+    public void setChecksumAlgorithm(byte checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
     }
 
-    public void setHeaders(ArrayList<byte[]> headers) {
-        this.headers = headers;
+    public boolean isZeroCopy() {
+        return this.zeroCopy;
     }
 
-    public void setSequenceRange(int sequenceRange) {
-        this.sequenceRange = sequenceRange;
+    public byte getChecksumAlgorithm() {
+        return this.checksumAlgorithm;
     }
 
-    public void setSeqNum(int seqNum) {
-        this.seqNum = seqNum;
+    public int getInitialSequenceNumber() {
+        return this.initialSequenceNumber;
     }
 
-    public void setAckNum(int ackNum) {
-        this.ackNum = ackNum;
+    /*
+     * Length of the range that is sent.
+     */
+    public long getFileLength() {
+        return this.fileLength;
     }
 
-    public ArrayList<byte[]> getSegments() {
-        return this.segments;
+    public long getFileSize() {
+        return this.fileSize;
     }
 
-	public ArrayList<byte[]> getDatagrams() {
-        return this.datagrams;
+    public long getRangeStart() {
+        return this.rangeStart;
     }
 
-    public ArrayList<byte[]> getHeaders() {
-        return this.headers;
+    public int getSegmentCount() {
+        return this.segmentCount;
     }
 
-    public int getSequenceRange(int sequenceRange) {
-        return this.sequenceRange;
+    public int getMaxSegmentSize() {
+        return this.mss;
     }
 
-    public int getSeqNum() {
-        return this.seqNum;
+    public int getMaxDatagramSize() {
+        return HEADER_BYTE_SIZE + this.mss;
     }
 
-    public int getAckNum() {
-        return this.ackNum;
+    /*
+     * Size of the buffer generateDatagram needs.
+     */
+    public int getBufferSize() {
+        return this.zeroCopy ? HEADER_BYTE_SIZE : HEADER_BYTE_SIZE + this.mss;
     }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+/*
+ * No congestion control, the sender always uses its full window size.
+ */
+public class FixedWindowController implements CongestionController {
+    private int window;
+
+    public FixedWindowController(int window) {
+        this.window = window;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long rtt) {
+    }
+
+    @Override
+    public void onDuplicateAck(int duplicateAcks) {
+    }
+
+    @Override
+    public void onTimeout() {
+    }
+
+    @Override
+    public int getWindow() {
+        return this.window;
+    }
+}
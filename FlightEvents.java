@@ -0,0 +1,166 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * JDK Flight Recorder events of the sender and receiver, recorded along
+ * with the GC, I/O and thread events of the JVM when it runs with
+ * -XX:StartFlightRecording.
+ *
+ * Without a recording the events are disabled and an event object that
+ * is never committed costs next to nothing, the JIT usually removes it.
+ * The fields are only filled in when the event will be committed. Stack
+ * traces are left out, the events are emitted for every datagram and
+ * always from the same places.
+ */
+public final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    /*
+     * A datagram handed to the socket, its duration is the time the send
+     * call took.
+     */
+    @Name("transport.SegmentSent")
+    @Label("Segment Sent")
+    @Category({ "Transport", "Sender" })
+    @StackTrace(false)
+    public static class SegmentSent extends jdk.jfr.Event {
+        @Label("Sequence Number")
+        public int seq;
+
+        @Label("Length")
+        @DataAmount
+        public int length;
+
+        @Label("Window")
+        @Description("Segments that may be in flight")
+        public int window;
+
+        @Label("In Flight")
+        @Description("Segments sent and not yet acknowledged")
+        public int inFlight;
+    }
+
+    /*
+     * An ack read from the ack connection, its duration is the time it
+     * took to handle it, waiting for the window lock included.
+     */
+    @Name("transport.AckReceived")
+    @Label("Ack Received")
+    @Category({ "Transport", "Sender" })
+    @StackTrace(false)
+    public static class AckReceived extends jdk.jfr.Event {
+        @Label("Sequence Number")
+        @Description("Sequence number of the acknowledged segment")
+        public int seq;
+
+        @Label("Ack Number")
+        @Description("Next sequence number the receiver expects")
+        public int ackNumber;
+
+        @Label("Receive Window")
+        public int receiveWindow;
+
+        @Label("Window")
+        public int window;
+
+        @Label("In Flight")
+        public int inFlight;
+
+        @Label("RTT")
+        @Description("Last RTT sample")
+        @Timespan(Timespan.MICROSECONDS)
+        public long rtt;
+    }
+
+    /*
+     * Segments sent again at once, after a timeout or on duplicate acks.
+     */
+    @Name("transport.RetransmitBurst")
+    @Label("Retransmit Burst")
+    @Category({ "Transport", "Sender" })
+    @StackTrace(false)
+    public static class RetransmitBurst extends jdk.jfr.Event {
+        @Label("Cause")
+        public String cause;
+
+        @Label("First Sequence Number")
+        public int seq;
+
+        @Label("Segments")
+        public int segments;
+
+        @Label("Window")
+        public int window;
+
+        @Label("In Flight")
+        public int inFlight;
+    }
+
+    /*
+     * The retransmission timeout recalculated from an RTT sample.
+     */
+    @Name("transport.RtoUpdate")
+    @Label("RTO Update")
+    @Category({ "Transport", "Sender" })
+    @StackTrace(false)
+    public static class RtoUpdate extends jdk.jfr.Event {
+        @Label("RTT")
+        @Timespan(Timespan.MICROSECONDS)
+        public long rtt;
+
+        @Label("Smoothed RTT")
+        @Timespan(Timespan.MICROSECONDS)
+        public long smoothedRtt;
+
+        @Label("RTT Deviation")
+        @Timespan(Timespan.MICROSECONDS)
+        public long rttDeviation;
+
+        @Label("RTO")
+        @Timespan(Timespan.MILLISECONDS)
+        public long rto;
+    }
+
+    /*
+     * What the receiver did with a datagram, its duration is the time it
+     * took to handle it, writing the data and sending the ack included.
+     */
+    @Name("transport.SegmentReceived")
+    @Label("Segment Received")
+    @Category({ "Transport", "Receiver" })
+    @StackTrace(false)
+    public static class SegmentReceived extends jdk.jfr.Event {
+        @Label("Sequence Number")
+        public int seq;
+
+        @Label("Length")
+        @DataAmount
+        public int length;
+
+        @Label("Accepted")
+        @Description("Whether the data was written to the file")
+        public boolean accepted;
+
+        @Label("Decision")
+        @Description("delivered, buffered, duplicate, out of order, outside window, corrupt or syn")
+        public String decision;
+
+        @Label("Expected Sequence Number")
+        @Description("Next sequence number expected after the datagram")
+        public int expected;
+
+        @Label("Receive Window")
+        public int window;
+
+        @Label("Buffered")
+        @Description("Segments held out of order")
+        public int buffered;
+    }
+}
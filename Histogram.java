@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Lock free histogram of non-negative values, the RTT samples of the
+ * sender in microseconds.
+ *
+ * The buckets are log-linear: values below LINEAR_LIMIT get a bucket each,
+ * above that every power of two is split into SUB_BUCKETS buckets of equal
+ * width. A value is off by at most 1/SUB_BUCKETS of itself, 12.5%, and
+ * recording one is a few shifts and an atomic increment, cheap enough for
+ * every ack. A percentile is read by walking the buckets, while values
+ * are still being recorded, so it is only a snapshot.
+ */
+public class Histogram {
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private final static int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+    private final static int BUCKET_COUNT = LINEAR_LIMIT + (63 - LINEAR_BITS) * SUB_BUCKETS;
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        this.buckets = new AtomicLongArray(BUCKET_COUNT);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        this.buckets.incrementAndGet(getBucket(value));
+        this.count.increment();
+        this.sum.add(value);
+        long previous = this.max.get();
+        while (value > previous && !this.max.compareAndSet(previous, value))
+            previous = this.max.get();
+    }
+
+    private static int getBucket(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /*
+     * Largest value that falls into the bucket.
+     */
+    private static long getUpperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT)
+            return bucket;
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    /*
+     * The value below which the given fraction of the samples lies, the
+     * upper bound of its bucket but no more than the largest sample.
+     * 0 when there are no samples.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            total += this.buckets.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), this.max.get());
+        }
+        return this.max.get();
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public long getMean() {
+        long count = this.count.sum();
+        return count == 0 ? 0 : this.sum.sum() / count;
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/*
+ * UDP proxy that impairs the datagrams from the TCP sender on their way to
+ * the TCP receiver, to test and measure the protocol on loopback.
+ *
+ * The sender sends to the proxy, the proxy forwards to the receiver. Acks
+ * go straight from the receiver to the sender over TCP and are not
+ * touched. Each datagram in turn can be:
+ *  lost        independently with the loss rate, or in bursts: with the
+ *              burst loss rate a burst starts, and every datagram of it
+ *              is lost until it ends with 1 / burst length per datagram
+ *  queued      behind the datagrams before it on a link of the given rate,
+ *              and dropped when that queue is full
+ *  delayed     by the delay plus a random jitter up to the given ms
+ *  reordered   held back a little longer so later datagrams overtake it
+ *  duplicated  delivered twice
+ *  corrupted   one random bit flipped
+ * All choices come from one Random with the given seed, so the same seed
+ * impairs the same datagrams of the same transfer.
+ *
+ * Every sender address gets its own socket towards the receiver, so a
+ * receiver in server mode still tells the senders apart. One thread runs
+ * everything on a Selector, datagrams wait in a queue ordered by the time
+ * they are due.
+ */
+public class ImpairmentProxy {
+    private final static int MAX_DATAGRAM_SIZE = 65507;
+    private final static long NANOS_PER_MS = 1000000L;
+    private int listeningPort;
+    private InetSocketAddress receiver;
+    private long seed;
+    private double lossRate;
+    private double burstLossRate;
+    private double burstLength;
+    private long delay;
+    private long jitter;
+    private double reorderRate;
+    private long reorderDelay;
+    private double duplicateRate;
+    private double corruptRate;
+    private long rate;
+    private int queueLimit;
+
+    private Random random;
+    private DatagramChannel channel;
+    private Selector selector;
+    private ByteBuffer receiveBuffer;
+    private HashMap<SocketAddress, DatagramChannel> forwards;
+    private PriorityQueue<Pending> pending;
+    private long sequence;
+    private boolean inBurst;
+    private long linkFreeAt;
+    private int queued;
+
+    // Counters printed when the proxy stops.
+    private long received;
+    private long forwarded;
+    private long lost;
+    private long queueDrops;
+    private long reordered;
+    private long duplicated;
+    private long corrupted;
+
+    /*
+     * A datagram waiting to be forwarded. The sequence number keeps
+     * datagrams due at the same time in arrival order.
+     */
+    private static class Pending {
+        private long due;
+        private long sequence;
+        private DatagramChannel forward;
+        private ByteBuffer data;
+        private boolean onLink;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length % 2 == 0)
+            printArguments();
+        final ImpairmentProxy proxy = new ImpairmentProxy();
+        try {
+            proxy.setUp(args);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    proxy.printStatistics();
+                }
+            });
+            System.out.println("Forwarding port " + proxy.getListeningPort()
+                    + " to " + proxy.getReceiver());
+            proxy.run();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void printArguments() {
+        System.out.println("java ImpairmentProxy <listening_port> <receiver_IP> <receiver_port>"
+                + " [-seed <n>] [-loss <p>] [-burstloss <p>] [-burstlength <datagrams>]\n"
+                + " [-delay <ms>] [-jitter <ms>] [-reorder <p>] [-reorderdelay <ms>]"
+                + " [-duplicate <p>] [-corrupt <p>] [-rate <bytes_per_second>] [-queue <datagrams>]\n"
+                + "probabilities p are between 0 and 1, all default 0, -seed default 1,"
+                + " -burstlength default 4, -reorderdelay default 5,\n"
+                + "-rate default unlimited, -queue default 1000 datagrams waiting for the rate");
+        System.exit(1);
+    }
+
+    public ImpairmentProxy() {
+        this.listeningPort = 0;
+        this.receiver = null;
+        this.seed = 1;
+        this.lossRate = 0;
+        this.burstLossRate = 0;
+        this.burstLength = 4;
+        this.delay = 0;
+        this.jitter = 0;
+        this.reorderRate = 0;
+        this.reorderDelay = 5;
+        this.duplicateRate = 0;
+        this.corruptRate = 0;
+        this.rate = 0;
+        this.queueLimit = 1000;
+        this.random = null;
+        this.channel = null;
+        this.selector = null;
+        this.receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        this.forwards = new HashMap<SocketAddress, DatagramChannel>();
+        this.pending = new PriorityQueue<Pending>(64, new Comparator<Pending>() {
+            @Override
+            public int compare(Pending a, Pending b) {
+                if (a.due != b.due)
+                    return a.due < b.due ? -1 : 1;
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        this.sequence = 0;
+        this.inBurst = false;
+        this.linkFreeAt = 0;
+        this.queued = 0;
+    }
+
+    public void setUp(String[] args) throws IOException {
+        this.setListeningPort(Integer.parseInt(args[0]));
+        this.setReceiver(new InetSocketAddress(InetAddress.getByName(args[1]),
+                Integer.parseInt(args[2])));
+        for (int i = 3; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("-seed"))
+                this.setSeed(Long.parseLong(value));
+            else if (args[i].equals("-loss"))
+                this.setLossRate(parseProbability(value));
+            else if (args[i].equals("-burstloss"))
+                this.setBurstLossRate(parseProbability(value));
+            else if (args[i].equals("-burstlength") && Double.parseDouble(value) >= 1)
+                this.setBurstLength(Double.parseDouble(value));
+            else if (args[i].equals("-delay") && Long.parseLong(value) >= 0)
+                this.setDelay(Long.parseLong(value));
+            else if (args[i].equals("-jitter") && Long.parseLong(value) >= 0)
+                this.setJitter(Long.parseLong(value));
+            else if (args[i].equals("-reorder"))
+                this.setReorderRate(parseProbability(value));
+            else if (args[i].equals("-reorderdelay") && Long.parseLong(value) >= 0)
+                this.setReorderDelay(Long.parseLong(value));
+            else if (args[i].equals("-duplicate"))
+                this.setDuplicateRate(parseProbability(value));
+            else if (args[i].equals("-corrupt"))
+                this.setCorruptRate(parseProbability(value));
+            else if (args[i].equals("-rate") && Long.parseLong(value) > 0)
+                this.setRate(Long.parseLong(value));
+            else if (args[i].equals("-queue") && Integer.parseInt(value) > 0)
+                this.setQueueLimit(Integer.parseInt(value));
+            else printArguments();
+        }
+        this.random = new Random(this.seed);
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF,
+                DatagramExtractor.SOCKET_BUFFER_SIZE);
+        this.channel.bind(new InetSocketAddress(this.listeningPort));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+    }
+
+    private static double parseProbability(String value) {
+        double p = Double.parseDouble(value);
+        if (p < 0 || p > 1)
+            printArguments();
+        return p;
+    }
+
+    /*
+     * Forward until the process is stopped, waking up for new datagrams
+     * and for the first waiting datagram that is due.
+     */
+    private void run() throws IOException {
+        while (true) {
+            long wait = 0;
+            if (!this.pending.isEmpty()) {
+                long nanos = this.pending.peek().due - System.nanoTime();
+                wait = Math.max(1, (nanos + NANOS_PER_MS - 1) / NANOS_PER_MS);
+            }
+            this.selector.select(wait);
+            this.selector.selectedKeys().clear();
+            this.receiveDatagrams();
+            this.sendDueDatagrams();
+        }
+    }
+
+    private void receiveDatagrams() throws IOException {
+        while (true) {
+            this.receiveBuffer.clear();
+            SocketAddress source = this.channel.receive(this.receiveBuffer);
+            if (source == null)
+                return;
+            this.receiveBuffer.flip();
+            synchronized (this) {
+                this.received++;
+            }
+            this.impair(this.getForward(source), this.receiveBuffer);
+        }
+    }
+
+    /*
+     * Socket towards the receiver for the datagrams of one sender.
+     */
+    private DatagramChannel getForward(SocketAddress source) throws IOException {
+        DatagramChannel forward = this.forwards.get(source);
+        if (forward == null) {
+            forward = DatagramChannel.open();
+            forward.connect(this.receiver);
+            this.forwards.put(source, forward);
+        }
+        return forward;
+    }
+
+    /*
+     * Decide what happens to one datagram and queue what is left of it.
+     */
+    private void impair(DatagramChannel forward, ByteBuffer datagram) {
+        // Burst loss follows a two state model, a burst ends at random
+        if (this.inBurst)
+            this.inBurst = this.random.nextDouble() >= 1 / this.burstLength;
+        else this.inBurst = this.random.nextDouble() < this.burstLossRate;
+        if (this.inBurst || this.random.nextDouble() < this.lossRate) {
+            synchronized (this) {
+                this.lost++;
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        long departure = now;
+        if (this.rate > 0) {
+            if (this.queued >= this.queueLimit) {
+                synchronized (this) {
+                    this.queueDrops++;
+                }
+                return;
+            }
+            departure = Math.max(now, this.linkFreeAt)
+                    + datagram.remaining() * 1000000000L / this.rate;
+            this.linkFreeAt = departure;
+            this.queued++;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+        copy.put(datagram).flip();
+        if (this.random.nextDouble() < this.corruptRate) {
+            int bit = this.random.nextInt(copy.limit() * 8);
+            copy.put(bit / 8, (byte) (copy.get(bit / 8) ^ (1 << (bit % 8))));
+            synchronized (this) {
+                this.corrupted++;
+            }
+        }
+
+        long latency = this.delay * NANOS_PER_MS;
+        if (this.jitter > 0)
+            latency += (long) (this.random.nextDouble() * this.jitter * NANOS_PER_MS);
+        if (this.random.nextDouble() < this.reorderRate) {
+            latency += this.reorderDelay * NANOS_PER_MS;
+            synchronized (this) {
+                this.reordered++;
+            }
+        }
+        this.schedule(forward, copy, departure + latency, this.rate > 0);
+        if (this.random.nextDouble() < this.duplicateRate) {
+            this.schedule(forward, copy.duplicate(), departure + latency, false);
+            synchronized (this) {
+                this.duplicated++;
+            }
+        }
+    }
+
+    private void schedule(DatagramChannel forward, ByteBuffer data, long due, boolean onLink) {
+        Pending datagram = new Pending();
+        datagram.due = due;
+        datagram.sequence = this.sequence++;
+        datagram.forward = forward;
+        datagram.data = data;
+        datagram.onLink = onLink;
+        this.pending.add(datagram);
+    }
+
+    /*
+     * Forward every waiting datagram that is due. A receiver that is not
+     * running yet only costs the datagram.
+     */
+    private void sendDueDatagrams() {
+        long now = System.nanoTime();
+        while (!this.pending.isEmpty() && this.pending.peek().due <= now) {
+            Pending datagram = this.pending.poll();
+            if (datagram.onLink)
+                this.queued--;
+            try {
+                datagram.forward.write(datagram.data);
+                synchronized (this) {
+                    this.forwarded++;
+                }
+            } catch (IOException e) {
+                // Nothing listens at the receiver, the datagram is lost
+            }
+        }
+    }
+
+    synchronized void printStatistics() {
+        System.out.println("Datagrams received = " + this.received);
+        System.out.println("Datagrams forwarded = " + this.forwarded);
+        System.out.println("Datagrams lost = " + this.lost);
+        System.out.println("Datagrams dropped by the queue = " + this.queueDrops);
+        System.out.println("Datagrams reordered = " + this.reordered);
+        System.out.println("Datagrams duplicated = " + this.duplicated);
+        System.out.println("Datagrams corrupted = " + this.corrupted);
+    }
+
+    public void setListeningPort(int listeningPort) {
+        this.listeningPort = listeningPort;
+    }
+
+    public void setReceiver(InetSocketAddress receiver) {
+        this.receiver = receiver;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    public void setBurstLossRate(double burstLossRate) {
+        this.burstLossRate = burstLossRate;
+    }
+
+    public void setBurstLength(double burstLength) {
+        this.burstLength = burstLength;
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+
+    public void setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+    }
+
+    public void setReorderDelay(long reorderDelay) {
+        this.reorderDelay = reorderDelay;
+    }
+
+    public void setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+    }
+
+    public void setCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+    }
+
+    public void setRate(long rate) {
+        this.rate = rate;
+    }
+
+    public void setQueueLimit(int queueLimit) {
+        this.queueLimit = queueLimit;
+    }
+
+    public int getListeningPort() {
+        return this.listeningPort;
+    }
+
+    public InetSocketAddress getReceiver() {
+        return this.receiver;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public double getLossRate() {
+        return this.lossRate;
+    }
+
+    public long getDelay() {
+        return this.delay;
+    }
+
+    public long getRate() {
+        return this.rate;
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.*;
+
+/*
+ * Convert a binary log written with "-log binary" to the text format of
+ * LogWriter or to CSV.
+ */
+public class LogConverter {
+    private final static String CSV_HEADER = "type,timestamp_ns,source,destination,"
+            + "sequence_number,ack_number,ack,fin,estimated_rtt_ms";
+
+    public static void main(String[] args) {
+        if (args.length != 2 && args.length != 4) {
+            printArguments();
+        }
+        String format = "text";
+        if (args.length == 4) {
+            if (!args[2].equals("-format")
+                    || !(args[3].equals("text") || args[3].equals("csv")))
+                printArguments();
+            format = args[3];
+        }
+
+        BinaryLog log = new BinaryLog();
+        try {
+            log.open(args[0]);
+            if (format.equals("csv"))
+                writeCsv(log, args[1]);
+            else writeText(log, args[1]);
+            log.closeReader();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void printArguments() {
+        System.out.println("java LogConverter <binary_log> <output_filename> [-format text|csv]\n"
+                + "-format default text, output_filename may be stdout");
+        System.exit(1);
+    }
+
+    /*
+     * The text goes through an async LogWriter so the lines match the ones
+     * written during a transfer.
+     */
+    private static void writeText(BinaryLog log, String filename) throws IOException {
+        LogWriter writer = new LogWriter();
+        writer.setAsync(true);
+        writer.setUp(filename);
+        for (long i = 0; i < log.getRecordCount(); i++) {
+            int record = log.seek(i);
+            if (!log.isMessage(record))
+                continue;
+            writer.writeToLog(log.getTimestamp(record) / 1000000L, log.isSender(record),
+                    log.getSource(record), log.getDestination(record),
+                    log.getSequenceNumber(record), log.getAckNumber(record),
+                    log.getFlag(record), log.getEstimatedRTT(record),
+                    log.getType(record) == BinaryLog.TYPE_SENT ? "Sent" : "Received");
+        }
+        writer.close();
+    }
+
+    private static void writeCsv(BinaryLog log, String filename) throws IOException {
+        PrintWriter out;
+        if (filename.equals("stdout"))
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        else out = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+        out.println(CSV_HEADER);
+        for (long i = 0; i < log.getRecordCount(); i++) {
+            int record = log.seek(i);
+            if (!log.isMessage(record))
+                continue;
+            out.print(log.getType(record) == BinaryLog.TYPE_SENT ? "Sent" : "Received");
+            out.print(',');
+            out.print(log.getTimestamp(record));
+            out.print(',');
+            out.print(log.getSource(record));
+            out.print(',');
+            out.print(log.getDestination(record));
+            out.print(',');
+            out.print(log.getSequenceNumber(record));
+            out.print(',');
+            out.print(log.getAckNumber(record));
+            out.print(",1,");
+            out.print(log.getFlag(record) == 17 ? 1 : 0);
+            out.print(',');
+            if (log.isSender(record))
+                out.print(log.getEstimatedRTT(record));
+            out.println();
+        }
+        out.close();
+    }
+}
@@ -1,34 +1,241 @@
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * Write log message to the specified log file
+ *
+ * In async mode writeToLog only copies the fields of the message into a
+ * preallocated ring of records. A background thread formats the records
+ * in batches and flushes the file once per flush interval, so the send
+ * and receive threads never format or wait on the file. The addresses
+ * and type passed in are kept by reference, callers pass the same
+ * strings for every message.
+ *
+ * In binary mode every message is appended as a fixed size record to a
+ * memory mapped BinaryLog instead, LogConverter turns it into text.
  */
 public class LogWriter {
+    private final static int RING_SIZE = 8192;
+    private final static long DEFAULT_FLUSH_INTERVAL = 100;
 	private String filename;
 	private PrintWriter fileWriter;
 	private File logFile;
+    private boolean async;
+    private boolean binary;
+    private BinaryLog binaryLog;
+    private long flushInterval;
+    private SimpleDateFormat dateFormat;
+    private Date date;
+    private long cachedSecond;
+    private String cachedDate;
+    private StringBuilder line;
+
+    // Ring of pending records, one slot per array index.
+    private boolean[] senders;
+    private long[] times;
+    private String[] sources;
+    private String[] destinations;
+    private String[] types;
+    private int[] seqNums;
+    private int[] ackNums;
+    private byte[] flags;
+    private long[] rtts;
+    private int head;
+    private int count;
+    private boolean closed;
+    private ReentrantLock ringLock;
+    private Condition notEmpty;
+    private Condition notFull;
+    private Thread logThread;
 
 	public LogWriter() {
         this.filename = null;
         this.fileWriter = null;
         this.logFile = null;
+        this.async = false;
+        this.binary = false;
+        this.binaryLog = null;
+        this.flushInterval = DEFAULT_FLUSH_INTERVAL;
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd:HH:mm:ss");
+        this.date = new Date();
+        this.cachedSecond = -1;
+        this.cachedDate = null;
+        this.line = new StringBuilder(160);
+        this.head = 0;
+        this.count = 0;
+        this.closed = false;
+        this.ringLock = new ReentrantLock();
+        this.notEmpty = this.ringLock.newCondition();
+        this.notFull = this.ringLock.newCondition();
+        this.logThread = null;
     }
 
     public void setUp(String filename) throws IOException {
+        if (this.binary) {
+            if (filename.equals("stdout"))
+                throw new IOException("The binary log needs a log file");
+            this.binaryLog = new BinaryLog();
+            this.binaryLog.create(filename);
+            return;
+        }
         logFile = new File(filename);
+        // The background thread flushes by itself in async mode.
+        boolean autoFlush = !this.async;
         if (filename.equals("stdout")) {
-            fileWriter = new PrintWriter(System.out, true);
+            fileWriter = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(System.out)), autoFlush);
         } else {
-            fileWriter = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)), true);
+            fileWriter = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)), autoFlush);
         }
+        if (this.async)
+            startLogThread();
+    }
+
+    private void startLogThread() {
+        this.senders = new boolean[RING_SIZE];
+        this.times = new long[RING_SIZE];
+        this.sources = new String[RING_SIZE];
+        this.destinations = new String[RING_SIZE];
+        this.types = new String[RING_SIZE];
+        this.seqNums = new int[RING_SIZE];
+        this.ackNums = new int[RING_SIZE];
+        this.flags = new byte[RING_SIZE];
+        this.rtts = new long[RING_SIZE];
+        this.logThread = new Thread("log-writer") {
+            @Override
+            public void run() {
+                drainRecords();
+            }
+        };
+        this.logThread.setDaemon(true);
+        this.logThread.start();
     }
 
     public void writeToLog(boolean isSender, String source, String destination,
             int seqNum, int ackNum, byte flag, long estimatedRTT, String type) {
-        Date date = new Date();
-        SimpleDateFormat dateFormat = setUpDateFormat();
+        if (this.binary) {
+            try {
+                this.binaryLog.append(isSender, type.equals("Sent") ? BinaryLog.TYPE_SENT
+                        : BinaryLog.TYPE_RECEIVED, source, destination, seqNum, ackNum,
+                        flag, estimatedRTT);
+            } catch (IOException e) {
+                System.out.println(e.getLocalizedMessage());
+            }
+            return;
+        }
+        writeToLog(System.currentTimeMillis(), isSender, source, destination,
+                seqNum, ackNum, flag, estimatedRTT, type);
+    }
+
+    /*
+     * Write a message with the given time in ms, used by LogConverter to
+     * write the messages of a binary log.
+     */
+    public void writeToLog(long now, boolean isSender, String source, String destination,
+            int seqNum, int ackNum, byte flag, long estimatedRTT, String type) {
+        if (!this.async) {
+            synchronized (this) {
+                this.fileWriter.println(formatRecord(isSender, now, source,
+                        destination, seqNum, ackNum, flag, estimatedRTT, type));
+            }
+            return;
+        }
+
+        this.ringLock.lock();
+        try {
+            // Block rather than drop, the log has to be complete.
+            while (this.count == RING_SIZE && !this.closed)
+                this.notFull.awaitUninterruptibly();
+            if (this.closed)
+                return;
+            int slot = (this.head + this.count) % RING_SIZE;
+            this.senders[slot] = isSender;
+            this.times[slot] = now;
+            this.sources[slot] = source;
+            this.destinations[slot] = destination;
+            this.types[slot] = type;
+            this.seqNums[slot] = seqNum;
+            this.ackNums[slot] = ackNum;
+            this.flags[slot] = flag;
+            this.rtts[slot] = estimatedRTT;
+            this.count++;
+            if (this.count == 1)
+                this.notEmpty.signal();
+        } finally {
+            this.ringLock.unlock();
+        }
+    }
+
+    /*
+     * Body of the log thread: take every pending record at once, format
+     * them outside the lock and flush when the interval has passed.
+     * The slots are only handed back after they are formatted.
+     */
+    private void drainRecords() {
+        long lastFlush = System.currentTimeMillis();
+        while (true) {
+            int first;
+            int batch;
+            boolean done;
+            this.ringLock.lock();
+            try {
+                long wait = TimeUnit.MILLISECONDS.toNanos(this.flushInterval);
+                while (this.count == 0 && !this.closed && wait > 0)
+                    wait = this.notEmpty.awaitNanos(wait);
+                first = this.head;
+                batch = this.count;
+                done = this.closed && batch == 0;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                this.ringLock.unlock();
+            }
+
+            for (int i = 0; i < batch; i++) {
+                int slot = (first + i) % RING_SIZE;
+                this.fileWriter.println(formatRecord(this.senders[slot],
+                        this.times[slot], this.sources[slot],
+                        this.destinations[slot], this.seqNums[slot],
+                        this.ackNums[slot], this.flags[slot], this.rtts[slot],
+                        this.types[slot]));
+            }
+
+            long now = System.currentTimeMillis();
+            if (done || now - lastFlush >= this.flushInterval) {
+                this.fileWriter.flush();
+                lastFlush = now;
+            }
+            if (done)
+                return;
+
+            this.ringLock.lock();
+            try {
+                this.head = (this.head + batch) % RING_SIZE;
+                this.count -= batch;
+                this.notFull.signalAll();
+            } finally {
+                this.ringLock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Build one log line in the reused builder. The date only changes once
+     * a second, so its formatted string is kept until then.
+     */
+    private StringBuilder formatRecord(boolean isSender, long time, String source,
+            String destination, int seqNum, int ackNum, byte flag,
+            long estimatedRTT, String type) {
+        long second = time / 1000;
+        if (second != this.cachedSecond) {
+            this.date.setTime(time);
+            this.cachedDate = this.dateFormat.format(this.date);
+            this.cachedSecond = second;
+        }
 
         // Prepare ack and fin flags.
         int ack = 1;
@@ -38,35 +245,57 @@ public class LogWriter {
         if (isFinSet(flag))
             fin = 1;
 
+        StringBuilder message = prepareMessage(type, this.cachedDate, source,
+                destination, seqNum, ackNum, ack, fin);
         // If it is the sender, then we include estimatedRTT.
-        if (isSender) {
-            this.fileWriter.println(prepareMessage(type,
-                    dateFormat.format(date), source, destination, seqNum,
-                    ackNum, ack, fin)
-                    + ", Estimated RTT: " + estimatedRTT + " ms");
-        } else {
-            this.fileWriter.println(prepareMessage(type,
-                    dateFormat.format(date), source, destination, seqNum,
-                    ackNum, ack, fin));
-        }
-    }
-
-    private SimpleDateFormat setUpDateFormat() {
-        return new SimpleDateFormat("yyyy-MM-dd:HH:mm:ss");
+        if (isSender)
+            message.append(", Estimated RTT: ").append(estimatedRTT).append(" ms");
+        return message;
     }
 
     private boolean isFinSet(byte flag) {
         return flag == 17 ? true : false;
     }
 
-    private String prepareMessage(String type, String date, String source,
+    private StringBuilder prepareMessage(String type, String date, String source,
             String destination, int seqNum, int ackNum, int ack, int fin) {
-        return type + ": " + date + ", Source: " + source + ", Destination: "
-                + destination + ", Sequence Number: " + seqNum
-                + ", Ack Number: " + ackNum + ", Ack: " + ack + ", Fin: " + fin;
+        this.line.setLength(0);
+        return this.line.append(type).append(": ").append(date)
+                .append(", Source: ").append(source)
+                .append(", Destination: ").append(destination)
+                .append(", Sequence Number: ").append(seqNum)
+                .append(", Ack Number: ").append(ackNum)
+                .append(", Ack: ").append(ack).append(", Fin: ").append(fin);
     }
 
+    /*
+     * In async mode wait for the log thread to write out every pending
+     * record before the file is closed.
+     */
     public void close() {
+        if (this.binaryLog != null) {
+            try {
+                this.binaryLog.close();
+            } catch (IOException e) {
+                System.out.println(e.getLocalizedMessage());
+            }
+            return;
+        }
+        if (this.logThread != null) {
+            this.ringLock.lock();
+            try {
+                this.closed = true;
+                this.notEmpty.signal();
+                this.notFull.signalAll();
+            } finally {
+                this.ringLock.unlock();
+            }
+            try {
+                this.logThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         this.fileWriter.close();
     }
 
@@ -78,6 +307,18 @@ public class LogWriter {
         this.fileWriter = fileWriter;
     }
 
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
     public String getFilename() {
         return this.filename;
     }
@@ -85,4 +326,16 @@ public class LogWriter {
     public PrintWriter getFileWriter() {
         return this.fileWriter;
     }
-}
\ No newline at end of file
+
+    public boolean isAsync() {
+        return this.async;
+    }
+
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    public long getFlushInterval() {
+        return this.flushInterval;
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Live metrics of a sender or receiver process, readable while a
+ * transfer runs.
+ *
+ * Counters are LongAdders, which the protocol threads bump without
+ * contending with each other. Gauges are read when the metrics are, from
+ * the fields of the protocol without taking its locks, so they are only a
+ * snapshot. Histograms are expanded into their count, mean, maximum and
+ * percentiles.
+ *
+ * The metrics are exported as the attributes of an MBean on the platform
+ * MBean server, for jconsole or any other JMX client, and with serve()
+ * as text on http://127.0.0.1:<port>/metrics, one "name value" line each.
+ */
+public class Metrics implements DynamicMBean {
+    private final static double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private final static String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+    private final ConcurrentHashMap<String, LongAdder> counters;
+    private final ConcurrentHashMap<String, Gauge> gauges;
+    private final ConcurrentHashMap<String, Histogram> histograms;
+    private HttpServer server;
+
+    /*
+     * A value read when the metrics are.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    public Metrics() {
+        this.counters = new ConcurrentHashMap<String, LongAdder>();
+        this.gauges = new ConcurrentHashMap<String, Gauge>();
+        this.histograms = new ConcurrentHashMap<String, Histogram>();
+        this.server = null;
+    }
+
+    /*
+     * The counter with the given name, created on first use.
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = this.counters.get(name);
+        if (counter == null) {
+            this.counters.putIfAbsent(name, new LongAdder());
+            counter = this.counters.get(name);
+        }
+        return counter;
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /*
+     * The histogram with the given name, created on first use.
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = this.histograms.get(name);
+        if (histogram == null) {
+            this.histograms.putIfAbsent(name, new Histogram());
+            histogram = this.histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /*
+     * Every metric by name, in name order.
+     */
+    public TreeMap<String, Long> snapshot() {
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : this.counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().sum());
+        for (Map.Entry<String, Gauge> entry : this.gauges.entrySet())
+            values.put(entry.getKey(), entry.getValue().getValue());
+        for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            values.put(name + "_count", histogram.getCount());
+            values.put(name + "_mean", histogram.getMean());
+            values.put(name + "_max", histogram.getMax());
+            for (int i = 0; i < PERCENTILES.length; i++)
+                values.put(name + "_" + PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i]));
+        }
+        return values;
+    }
+
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : this.snapshot().entrySet())
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        return text.toString();
+    }
+
+    /*
+     * CPU time of the whole process since the JVM started, -1 when the JVM
+     * does not report it.
+     */
+    public static long getProcessCpuMillis() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean))
+            return -1;
+        return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1000000;
+    }
+
+    /*
+     * The sum of the highest use of every heap pool since the JVM started.
+     */
+    public static long getPeakHeap() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+        return peakHeap;
+    }
+
+    /*
+     * Register as an MBean on the platform MBean server under the given
+     * object name, e.g. "TCPsender:type=Metrics".
+     */
+    public void register(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+    }
+
+    /*
+     * Serve the metrics over HTTP on the loopback interface, on a thread
+     * of the HTTP server.
+     */
+    public void serve(int port) throws IOException {
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        this.server.start();
+    }
+
+    /*
+     * Stop the HTTP server, whose thread would keep the process alive.
+     */
+    public void close() {
+        if (this.server != null)
+            this.server.stop(0);
+        this.server = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = this.snapshot().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        TreeMap<String, Long> values = this.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute))
+                list.add(new Attribute(attribute, values.get(attribute)));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        TreeMap<String, Long> values = this.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet())
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        return new MBeanInfo(Metrics.class.getName(), "Transfer metrics", attributes,
+                null, null, null);
+    }
+}
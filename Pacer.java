@@ -0,0 +1,87 @@
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Token bucket pacing of the TCP sender.
+ *
+ * Without pacing the sender puts a whole window on the wire back to back
+ * as soon as it opens, a burst that can overflow the socket buffers on
+ * the way. With pacing the tokens are bytes that flow into the bucket at
+ * the pacing rate, up to the burst size, and a datagram only leaves when
+ * the bucket holds enough tokens for it. The burst size lets a few
+ * datagrams go back to back after an idle period.
+ *
+ * The sending thread waits for tokens with LockSupport.parkNanos, which
+ * wakes up far more precisely than the milliseconds of Thread.sleep.
+ */
+public class Pacer {
+    private final static double NANOS_PER_SECOND = 1000000000.0;
+    private long rate;
+    private long burst;
+    private double tokens;
+    private long lastRefill;
+
+    /*
+     * Rate in bytes per second, burst in bytes. The bucket starts full.
+     */
+    public Pacer(long rate, long burst) {
+        this.rate = Math.max(1, rate);
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /*
+     * Nanoseconds until the bucket holds the given number of bytes, 0 if
+     * it does now.
+     */
+    public long getDelay(int bytes) {
+        refill();
+        if (this.tokens >= bytes)
+            return 0;
+        return (long) Math.ceil((bytes - this.tokens) * NANOS_PER_SECOND / this.rate);
+    }
+
+    /*
+     * Take the tokens of a datagram that was sent. A retransmission sent
+     * without waiting may leave the bucket in debt, which the following
+     * datagrams wait off.
+     */
+    public void consume(int bytes) {
+        refill();
+        this.tokens -= bytes;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        this.tokens = Math.min(this.burst,
+                this.tokens + (double) (now - this.lastRefill) * this.rate / NANOS_PER_SECOND);
+        this.lastRefill = now;
+    }
+
+    /*
+     * Park the calling thread for the given time. parkNanos may return
+     * early, so it is repeated until the time is up or the thread is
+     * interrupted.
+     */
+    public static void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    public void setRate(long rate) {
+        refill();
+        this.rate = Math.max(1, rate);
+    }
+
+    public long getRate() {
+        return this.rate;
+    }
+
+    public long getBurst() {
+        return this.burst;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * The file being received, kept open for the whole transfer.
+ *
+ * Every segment is written at its own offset in the file, so segments
+ * that arrive out of order or twice land in the right place and no
+ * append order is assumed. Used by TCP receiver only.
+ *
+ * In server mode the stripes of one file are separate connections that
+ * share it, each one adds itself as a user and the file is only closed
+ * when the last of them closes it.
+ */
+public class ReceivedFile {
+    private FileChannel channel;
+    private long length;
+    private long preallocated;
+    private int users;
+
+    public ReceivedFile() {
+        this.channel = null;
+        this.length = 0;
+        this.preallocated = 0;
+        this.users = 0;
+    }
+
+    /*
+     * Create or truncate the file. When the size is known (> 0) the file
+     * is extended to it at once, so writes never have to grow it.
+     */
+    public void open(String filename, long expectedSize) throws IOException {
+        open(filename, expectedSize, true);
+    }
+
+    /*
+     * Open the file for its first user. Without truncating, what the
+     * earlier users of a shared file wrote is kept.
+     */
+    public void open(String filename, long expectedSize, boolean truncate) throws IOException {
+        if (truncate)
+            this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        else this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        this.length = truncate ? 0 : this.channel.size();
+        this.users = 1;
+        if (expectedSize > 0)
+            preallocate(expectedSize);
+    }
+
+    /*
+     * Extend the file to the given size, or cut it down to it when an
+     * older, longer file was opened without truncating.
+     */
+    public void preallocate(long size) throws IOException {
+        if (size > this.channel.size())
+            this.channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        else if (size < this.channel.size())
+            this.channel.truncate(size);
+        this.length = Math.min(this.length, size);
+        this.preallocated = size;
+    }
+
+    public void addUser() {
+        this.users++;
+    }
+
+    /*
+     * Write the remaining bytes of the buffer at the given file position.
+     */
+    public void write(ByteBuffer data, long position) throws IOException {
+        long end = position + data.remaining();
+        while (data.hasRemaining())
+            position += this.channel.write(data, position);
+        this.length = Math.max(this.length, end);
+    }
+
+    /*
+     * Cut off what was preallocated but never written and close the file
+     * once its last user closes it.
+     */
+    public void close() throws IOException {
+        if (this.channel == null || --this.users > 0)
+            return;
+        if (this.preallocated > this.length)
+            this.channel.truncate(this.length);
+        this.channel.close();
+        this.channel = null;
+    }
+
+    public boolean isOpen() {
+        return this.channel != null;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+}
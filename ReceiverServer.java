@@ -0,0 +1,469 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+ * Server mode of the TCP receiver: one long running receiver serves any
+ * number of senders at the same time.
+ *
+ * All datagrams arrive on one non-blocking DatagramChannel, driven by a
+ * Selector on a single thread. A connection is identified by the address
+ * and port the sender sends from, like the address and port pair of a TCP
+ * connection, and each one is its own TCPreceiver with its own expected
+ * sequence number, reorder buffer, output file and ack connection.
+ * A sender opens a connection with a SYN datagram (TCPsender -connect)
+ * naming the file, which is written to the directory of the server.
+ * The stripes of a striped transfer are connections of their own that
+ * name the same file and share it, each writing its range at the offset
+ * given in its SYN.
+ *
+ * The connections share the socket receive buffer, each one advertises
+ * the receive window of an equal share of it. The ack connection of a
+ * connection is connected without blocking the selector thread, its
+ * acks are held until the connect completes.
+ *
+ * A finished connection stays around for LINGER_TIME to ack a FIN the
+ * sender sends again, a connection that sends nothing for IDLE_TIMEOUT is
+ * dropped.
+ */
+public class ReceiverServer {
+    private final static long SELECT_TIMEOUT = 1000;
+    private final static long LINGER_TIME = 5000;
+    private final static long IDLE_TIMEOUT = 60000;
+    private int listeningPort;
+    private Path directory;
+    private String logFilename;
+    private String logMode;
+    private long logFlushInterval;
+    private int ackEvery;
+    private long ackDelay;
+    private int receiveWindowLimit;
+    private int receiveBufferSize;
+    private int metricsPort;
+    private DatagramChannel channel;
+    private Selector selector;
+    private ByteBuffer receiveBuffer;
+    private DatagramExtractor extractor;
+    private HashMap<SocketAddress, TCPreceiver> connections;
+    // Files being received, by sender address and path.
+    private HashMap<String, ReceivedFile> files;
+    // Connections whose ack connection just connected.
+    private ArrayList<TCPreceiver> ackConnected;
+    private long lastExpiry;
+
+    static void runServer(String[] args) {
+        final ReceiverServer server = new ReceiverServer();
+        LogWriter writer = new LogWriter();
+        try {
+            server.setUp(args);
+            writer.setAsync(server.getLogMode().equals("async"));
+            writer.setBinary(server.getLogMode().equals("binary"));
+            writer.setFlushInterval(server.getLogFlushInterval());
+            writer.setUp(server.getLogFilename());
+            TCPreceiver.getMetrics().gauge("connections", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return server.connections.size();
+                }
+            });
+            TCPreceiver.exportMetrics(server.getMetricsPort());
+            System.out.println("Receiving on port " + server.getListeningPort()
+                    + " into " + server.getDirectory());
+            server.serve(writer);
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+        }
+        writer.close();
+        System.exit(1);
+    }
+
+    public ReceiverServer() {
+        this.listeningPort = 0;
+        this.directory = null;
+        this.logFilename = null;
+        this.logMode = "sync";
+        this.logFlushInterval = 100;
+        this.ackEvery = 1;
+        this.ackDelay = 10;
+        this.receiveWindowLimit = 0;
+        this.receiveBufferSize = 0;
+        this.metricsPort = 0;
+        this.channel = null;
+        this.selector = null;
+        this.receiveBuffer = ByteBuffer.allocateDirect(DatagramExtractor.MAX_DATAGRAM_SIZE);
+        this.extractor = new DatagramExtractor();
+        this.connections = new HashMap<SocketAddress, TCPreceiver>();
+        this.files = new HashMap<String, ReceivedFile>();
+        this.ackConnected = new ArrayList<TCPreceiver>();
+        this.lastExpiry = 0;
+    }
+
+    public void setUp(String[] args) throws IOException {
+        this.setListeningPort(Integer.parseInt(args[1]));
+        this.setDirectory(Paths.get(args[2]));
+        this.setLogFilename(args[3]);
+        for (int i = 4; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-log") && (args[i + 1].equals("sync")
+                    || args[i + 1].equals("async") || args[i + 1].equals("binary")))
+                this.setLogMode(args[i + 1]);
+            else if (args[i].equals("-logflush"))
+                this.setLogFlushInterval(Long.parseLong(args[i + 1]));
+            else if (args[i].equals("-ackevery") && Integer.parseInt(args[i + 1]) > 0)
+                this.setAckEvery(Integer.parseInt(args[i + 1]));
+            else if (args[i].equals("-ackdelay") && Long.parseLong(args[i + 1]) > 0)
+                this.setAckDelay(Long.parseLong(args[i + 1]));
+            else if (args[i].equals("-rwnd") && Integer.parseInt(args[i + 1]) > 0)
+                this.setReceiveWindowLimit(Integer.parseInt(args[i + 1]));
+            else if (args[i].equals("-metrics") && Integer.parseInt(args[i + 1]) > 0)
+                this.setMetricsPort(Integer.parseInt(args[i + 1]));
+            else TCPreceiver.printArguments();
+        }
+        if (!this.directory.toFile().isDirectory())
+            throw new IOException("Not a directory: " + this.directory);
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF,
+                DatagramExtractor.SOCKET_BUFFER_SIZE);
+        this.receiveBufferSize = this.channel.getOption(StandardSocketOptions.SO_RCVBUF);
+        this.channel.bind(new InetSocketAddress(this.listeningPort));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.channel.register(this.selector, SelectionKey.OP_READ);
+    }
+
+    /*
+     * Serve until the process is stopped. The selector wakes up in time
+     * for the first delayed ack that is due.
+     */
+    private void serve(LogWriter writer) throws IOException {
+        long wait = SELECT_TIMEOUT;
+        while (true) {
+            this.selector.select(wait);
+            this.finishAckConnects(writer);
+            this.selector.selectedKeys().clear();
+            this.receiveDatagrams(writer);
+            wait = this.flushDelayedAcks(writer);
+            this.expireConnections();
+        }
+    }
+
+    /*
+     * Complete the ack connections the selector reports as connectable
+     * and send the acks they held. Their keys are cancelled, selectNow
+     * drops them so the channels can go back to blocking.
+     */
+    private void finishAckConnects(LogWriter writer) throws IOException {
+        for (SelectionKey key : this.selector.selectedKeys()) {
+            if (!(key.channel() instanceof SocketChannel))
+                continue;
+            TCPreceiver connection = (TCPreceiver) key.attachment();
+            try {
+                if (connection.finishAckConnect(key))
+                    this.ackConnected.add(connection);
+            } catch (IOException e) {
+                System.out.println("Ack connection: " + e.getLocalizedMessage());
+                key.cancel();
+                this.closeConnection(connection);
+            }
+        }
+        if (this.ackConnected.isEmpty())
+            return;
+        this.selector.selectNow();
+        for (TCPreceiver connection : this.ackConnected) {
+            try {
+                connection.flushAck(writer);
+            } catch (IOException e) {
+                System.out.println(e.getLocalizedMessage());
+                this.closeConnection(connection);
+            }
+        }
+        this.ackConnected.clear();
+    }
+
+    /*
+     * Send the delayed acks that are due. Returns how long until the next
+     * one is, at most SELECT_TIMEOUT.
+     */
+    private long flushDelayedAcks(LogWriter writer) {
+        long wait = SELECT_TIMEOUT;
+        if (this.ackEvery <= 1)
+            return wait;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<SocketAddress, TCPreceiver>> entries =
+                this.connections.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<SocketAddress, TCPreceiver> entry = entries.next();
+            TCPreceiver connection = entry.getValue();
+            long deadline = connection.getAckDeadline();
+            if (deadline == 0)
+                continue;
+            if (deadline > now) {
+                wait = Math.min(wait, deadline - now);
+                continue;
+            }
+            try {
+                connection.flushAck(writer);
+            } catch (IOException e) {
+                System.out.println(entry.getKey() + ": " + e.getLocalizedMessage());
+                entries.remove();
+                this.closeQuietly(connection);
+            }
+        }
+        return wait;
+    }
+
+    /*
+     * Read every datagram waiting on the channel and hand it to its
+     * connection. A failing connection is closed without stopping the
+     * others.
+     */
+    private void receiveDatagrams(LogWriter writer) throws IOException {
+        ByteBuffer segment = this.receiveBuffer;
+        while (true) {
+            segment.clear();
+            SocketAddress source = this.channel.receive(segment);
+            if (source == null)
+                return;
+            if (!TCPreceiver.limitToDatagram(segment, this.extractor))
+                continue;
+
+            TCPreceiver connection = this.connections.get(source);
+            try {
+                if (connection == null) {
+                    connection = this.openConnection((InetSocketAddress) source, segment);
+                    if (connection == null)
+                        continue;
+                }
+                if (connection.receiveSegment(segment, this.extractor, writer)
+                        && !connection.isFinished()) {
+                    connection.setFinished(true);
+                    connection.closeFile();
+                    System.out.println("Delivery completed successfully: "
+                            + connection.getReceivedFilename());
+                }
+            } catch (IOException e) {
+                System.out.println(source + ": " + e.getLocalizedMessage());
+                this.closeConnection(source);
+            }
+        }
+    }
+
+    /*
+     * Only a SYN datagram opens a connection, anything else from an
+     * unknown sender is dropped before anything is allocated for it. The
+     * file name is reduced to its last part so a sender cannot write
+     * outside the directory.
+     */
+    private TCPreceiver openConnection(InetSocketAddress source, ByteBuffer segment)
+            throws IOException {
+        byte flag = this.extractor.extractFlagsFromHeader(segment);
+        if (!TCPreceiver.isSynOn(flag) || !this.extractor.checkCheckSum(segment))
+            return null;
+        ConnectionRequest request = new ConnectionRequest();
+        if (!request.read(segment, DatagramExtractor.HEADER_SIZE))
+            return null;
+        Path name;
+        try {
+            name = Paths.get(request.getFilename()).getFileName();
+        } catch (InvalidPathException e) {
+            // A name the file system cannot take, such as one with a NUL
+            return null;
+        }
+        if (name == null || name.toString().equals(".."))
+            return null;
+
+        String filename = this.directory.resolve(name).toString();
+        TCPreceiver connection = new TCPreceiver();
+        connection.setListenSocket(this.channel);
+        connection.setListeningPort(this.listeningPort);
+        connection.setSenderAddress(source.getAddress());
+        connection.setSenderPort(request.getAckPort());
+        connection.setReceivedFilename(filename);
+        connection.setWindowSize(1);
+        connection.setAckEvery(this.ackEvery);
+        connection.setAckDelay(this.ackDelay);
+        connection.setReceiveWindowLimit(this.receiveWindowLimit);
+        connection.setReceivedFile(this.openFile(source.getAddress().getHostAddress()
+                + " " + filename, filename, request.getFileLength()));
+        this.connections.put(source, connection);
+        connection.connectAckSocket(this.selector);
+        this.shareReceiveBuffer();
+        System.out.println("Connection from " + source + " for " + filename);
+        return connection;
+    }
+
+    /*
+     * Open the file for a new connection, or share it with the other
+     * stripes of the same transfer. A stripe that connects after the
+     * others already closed the file reopens it keeping their data.
+     */
+    private ReceivedFile openFile(String key, String filename, long fileLength)
+            throws IOException {
+        ReceivedFile file = this.files.get(key);
+        if (file == null) {
+            file = new ReceivedFile();
+            file.open(filename, fileLength);
+            this.files.put(key, file);
+        } else if (!file.isOpen())
+            file.open(filename, fileLength, false);
+        else file.addUser();
+        return file;
+    }
+
+    /*
+     * At most once a second, drop the connections that finished more than
+     * LINGER_TIME ago or were idle for IDLE_TIMEOUT.
+     */
+    private void expireConnections() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastExpiry < SELECT_TIMEOUT)
+            return;
+        this.lastExpiry = now;
+        Iterator<Map.Entry<SocketAddress, TCPreceiver>> entries =
+                this.connections.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<SocketAddress, TCPreceiver> entry = entries.next();
+            TCPreceiver connection = entry.getValue();
+            long idle = now - connection.getLastActivity();
+            if ((connection.isFinished() && idle > LINGER_TIME) || idle > IDLE_TIMEOUT) {
+                if (!connection.isFinished())
+                    System.out.println("Connection from " + entry.getKey() + " timed out");
+                entries.remove();
+                this.closeQuietly(connection);
+            }
+        }
+        this.shareReceiveBuffer();
+        Iterator<ReceivedFile> files = this.files.values().iterator();
+        while (files.hasNext()) {
+            if (!this.isInUse(files.next()))
+                files.remove();
+        }
+    }
+
+    /*
+     * Split the socket receive buffer evenly between the connections.
+     */
+    private void shareReceiveBuffer() {
+        int share = this.receiveBufferSize / Math.max(1, this.connections.size());
+        for (TCPreceiver connection : this.connections.values())
+            connection.setReceiveBufferSize(share);
+    }
+
+    private boolean isInUse(ReceivedFile file) {
+        if (file.isOpen())
+            return true;
+        for (TCPreceiver connection : this.connections.values()) {
+            if (connection.getReceivedFile() == file)
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Close a connection found by its TCPreceiver rather than its address.
+     */
+    private void closeConnection(TCPreceiver connection) {
+        Iterator<TCPreceiver> connections = this.connections.values().iterator();
+        while (connections.hasNext()) {
+            if (connections.next() == connection)
+                connections.remove();
+        }
+        this.closeQuietly(connection);
+    }
+
+    private void closeConnection(SocketAddress source) {
+        TCPreceiver connection = this.connections.remove(source);
+        if (connection != null)
+            this.closeQuietly(connection);
+    }
+
+    private void closeQuietly(TCPreceiver connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+        }
+    }
+
+    public void setListeningPort(int listeningPort) {
+        this.listeningPort = listeningPort;
+    }
+
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    public void setLogFilename(String logFilename) {
+        this.logFilename = logFilename;
+    }
+
+    public void setLogMode(String logMode) {
+        this.logMode = logMode;
+    }
+
+    public void setLogFlushInterval(long logFlushInterval) {
+        this.logFlushInterval = logFlushInterval;
+    }
+
+    public void setAckEvery(int ackEvery) {
+        this.ackEvery = ackEvery;
+    }
+
+    public void setAckDelay(long ackDelay) {
+        this.ackDelay = ackDelay;
+    }
+
+    public int getListeningPort() {
+        return this.listeningPort;
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public String getLogFilename() {
+        return this.logFilename;
+    }
+
+    public String getLogMode() {
+        return this.logMode;
+    }
+
+    public long getLogFlushInterval() {
+        return this.logFlushInterval;
+    }
+
+    public void setReceiveWindowLimit(int receiveWindowLimit) {
+        this.receiveWindowLimit = receiveWindowLimit;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public int getReceiveWindowLimit() {
+        return this.receiveWindowLimit;
+    }
+
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+    public int getAckEvery() {
+        return this.ackEvery;
+    }
+
+    public long getAckDelay() {
+        return this.ackDelay;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * TCP Reno congestion control (RFC 5681).
+ *
+ * Slow start doubles the window every round trip until it reaches the
+ * slow start threshold, congestion avoidance then adds one segment per
+ * round trip. Three duplicate acks halve the window and enter fast
+ * recovery, a timeout halves the threshold and restarts slow start.
+ */
+public class RenoController implements CongestionController {
+    private final static int DUPLICATE_ACK_THRESHOLD = 3;
+    private final static double MIN_SSTHRESH = 2;
+    private double congestionWindow;
+    private double slowStartThreshold;
+    private boolean fastRecovery;
+
+    public RenoController(int maxWindow) {
+        this.congestionWindow = 1;
+        this.slowStartThreshold = Math.max(MIN_SSTHRESH, maxWindow);
+        this.fastRecovery = false;
+    }
+
+    @Override
+    public void onAck(int ackedSegments, long rtt) {
+        if (this.fastRecovery) {
+            // Deflate the window once the lost segment is acked
+            this.fastRecovery = false;
+            this.congestionWindow = this.slowStartThreshold;
+            return;
+        }
+
+        if (this.congestionWindow < this.slowStartThreshold)
+            this.congestionWindow += ackedSegments;
+        else this.congestionWindow += (double) ackedSegments / this.congestionWindow;
+    }
+
+    @Override
+    public void onDuplicateAck(int duplicateAcks) {
+        if (duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+            this.slowStartThreshold = Math.max(MIN_SSTHRESH, this.congestionWindow / 2);
+            this.congestionWindow = this.slowStartThreshold + DUPLICATE_ACK_THRESHOLD;
+            this.fastRecovery = true;
+        } else if (duplicateAcks > DUPLICATE_ACK_THRESHOLD && this.fastRecovery) {
+            // Every further duplicate ack means a segment left the network
+            this.congestionWindow += 1;
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        this.slowStartThreshold = Math.max(MIN_SSTHRESH, this.congestionWindow / 2);
+        this.congestionWindow = 1;
+        this.fastRecovery = false;
+    }
+
+    @Override
+    public int getWindow() {
+        return Math.max(1, (int) this.congestionWindow);
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Retransmission timers of the TCP sender, one per slot of the send window.
+ *
+ * The timers run on a single scheduler thread, so the sending thread can
+ * park until an ack or an expired timer wakes it up instead of polling
+ * the clock. The listener is told the index of the segment that timed out.
+ */
+public class RetransmissionTimer {
+    private final static long MIN_DELAY = 1;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ScheduledFuture<?>[] timers;
+    private Listener listener;
+
+    public interface Listener {
+        void onTimeout(int index);
+    }
+
+    public RetransmissionTimer(int slots, Listener listener) {
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "retransmission-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.timers = new ScheduledFuture<?>[slots];
+        this.listener = listener;
+    }
+
+    /*
+     * (Re)start the timer of a slot for the segment at the given index.
+     */
+    public void start(int slot, final int index, long timeout) {
+        cancel(slot);
+        this.timers[slot] = this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                listener.onTimeout(index);
+            }
+        }, Math.max(MIN_DELAY, timeout), TimeUnit.MILLISECONDS);
+    }
+
+    public void cancel(int slot) {
+        if (this.timers[slot] != null) {
+            this.timers[slot].cancel(false);
+            this.timers[slot] = null;
+        }
+    }
+
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,133 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32C;
+
+/*
+ * Checksum over the whole datagram, header and data, computed by the
+ * sender and verified by the receiver.
+ *
+ * Two algorithms are supported, picked by the sender and recorded in the
+ * header so the receiver follows it:
+ *  INTERNET  RFC 1071 16 bit ones' complement sum, kept in the low 16
+ *            bits of the checksum field
+ *  CRC32C    Castagnoli CRC from java.util.zip, which the JVM computes
+ *            with the CPU's CRC instructions where available
+ *
+ * The checksum field itself counts as zero. The ones' complement sum is
+ * taken 8 bytes at a time: the two 32 bit halves of each word are added
+ * into a 64 bit accumulator, which cannot overflow for a datagram, and
+ * folded to 16 bits at the end. Since 2^16 is 1 modulo 2^16 - 1 this is
+ * the same as adding the 16 bit words one by one.
+ */
+public class SegmentChecksum {
+    public final static byte INTERNET = 0;
+    public final static byte CRC32C = 1;
+    public final static int CHECKSUM_INDEX = 20;
+    private final static int CHECKSUM_SIZE = 4;
+    private final static VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(
+            long[].class, ByteOrder.BIG_ENDIAN);
+    private CRC32C crc;
+
+    public SegmentChecksum() {
+        this.crc = new CRC32C();
+    }
+
+    /*
+     * Checksum of the first length bytes of the datagram. The checksum
+     * field must be zero.
+     */
+    public int calculate(byte algorithm, byte[] datagram, int length) {
+        if (algorithm == CRC32C) {
+            this.crc.reset();
+            this.crc.update(datagram, 0, CHECKSUM_INDEX);
+            this.crc.update(datagram, CHECKSUM_INDEX + CHECKSUM_SIZE,
+                    length - CHECKSUM_INDEX - CHECKSUM_SIZE);
+            return (int) this.crc.getValue();
+        }
+        long sum = 0;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = (long) LONG_VIEW.get(datagram, i);
+            sum += (word >>> 32) + (word & 0xffffffffL);
+        }
+        for (; i + 2 <= length; i += 2)
+            sum += (datagram[i] & 0xff) << 8 | (datagram[i + 1] & 0xff);
+        if (i < length)
+            sum += (datagram[i] & 0xff) << 8;
+        return ~fold(sum) & 0xffff;
+    }
+
+    /*
+     * Checksum of a datagram whose data is not in the same buffer as its
+     * header: the header bytes followed by the remaining bytes of the
+     * payload, which is left as it was. The checksum field must be zero.
+     */
+    public int calculate(byte algorithm, byte[] header, int headerLength, ByteBuffer payload) {
+        int position = payload.position();
+        if (algorithm == CRC32C) {
+            this.crc.reset();
+            this.crc.update(header, 0, CHECKSUM_INDEX);
+            this.crc.update(header, CHECKSUM_INDEX + CHECKSUM_SIZE,
+                    headerLength - CHECKSUM_INDEX - CHECKSUM_SIZE);
+            this.crc.update(payload);
+            payload.position(position);
+            return (int) this.crc.getValue();
+        }
+        // The header has an even length, so the data words line up.
+        long sum = 0;
+        for (int i = 0; i < headerLength; i += 2)
+            sum += (header[i] & 0xff) << 8 | (header[i + 1] & 0xff);
+        sum += sum(payload, position, payload.limit());
+        return ~fold(sum) & 0xffff;
+    }
+
+    /*
+     * Check the datagram between index 0 and the limit of the buffer
+     * against the checksum it carries.
+     */
+    public boolean verify(byte algorithm, ByteBuffer datagram) {
+        int length = datagram.limit();
+        if (length < CHECKSUM_INDEX + CHECKSUM_SIZE)
+            return false;
+        if (algorithm == CRC32C) {
+            int position = datagram.position();
+            this.crc.reset();
+            datagram.limit(CHECKSUM_INDEX).position(0);
+            this.crc.update(datagram);
+            datagram.limit(length).position(CHECKSUM_INDEX + CHECKSUM_SIZE);
+            this.crc.update(datagram);
+            datagram.position(position);
+            return (int) this.crc.getValue() == datagram.getInt(CHECKSUM_INDEX);
+        }
+        if (algorithm != INTERNET)
+            return false;
+        // With the checksum included the sum of an intact datagram is all ones.
+        return fold(sum(datagram, 0, length)) == 0xffff
+                && datagram.getShort(CHECKSUM_INDEX) == 0;
+    }
+
+    /*
+     * Ones' complement sum of the bytes between start and end, not folded.
+     */
+    private static long sum(ByteBuffer buffer, int start, int end) {
+        long sum = 0;
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            long word = buffer.getLong(i);
+            sum += (word >>> 32) + (word & 0xffffffffL);
+        }
+        for (; i + 2 <= end; i += 2)
+            sum += buffer.getShort(i) & 0xffff;
+        if (i < end)
+            sum += (buffer.get(i) & 0xff) << 8;
+        return sum;
+    }
+
+    private static int fold(long sum) {
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xffff) + (sum >>> 16);
+        return (int) sum;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Wraparound safe arithmetic on 32 bit TCP sequence numbers.
+ *
+ * Sequence numbers count bytes of the file from the initial sequence
+ * number, the FIN flag takes one more. Two numbers are compared by their
+ * signed 32 bit distance, which stays correct when the counter wraps
+ * around as long as they are less than 2^31 bytes apart.
+ */
+public final class SequenceNumber {
+    public final static int INITIAL_SEQUENCE_NUMBER = 0;
+
+    private SequenceNumber() {
+    }
+
+    public static int distance(int from, int to) {
+        return to - from;
+    }
+
+    public static boolean isBefore(int a, int b) {
+        return a - b < 0;
+    }
+
+    public static boolean isAfter(int a, int b) {
+        return a - b > 0;
+    }
+
+    public static int add(int seqNum, long bytes) {
+        return seqNum + (int) bytes;
+    }
+
+    /*
+     * Orders sequence numbers that are less than 2^31 bytes apart.
+     */
+    public static int compare(int a, int b) {
+        return Integer.compare(a - b, 0);
+    }
+}
@@ -1,5 +1,15 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
 
 /*
  * Receive the list of the datagrams for the specified file
@@ -12,15 +22,75 @@ public class TCPreceiver {
     private InetAddress senderAddress;
     private String logFilename;
     private String receivedFilename;
-    private Socket ackSocket;
-    private DatagramSocket listenSocket;
-    private final static int MSS = 576;
+    private SocketChannel ackSocket;
+    private AckFrame ackFrame;
+    private DatagramChannel listenSocket;
+    private ByteBuffer receiveBuffer;
+    private final static byte SYN_ACK_FLAG = 18;
+    private final static long DEFAULT_ACK_DELAY = 10;
+    private final static int INITIAL_ACK_BATCH = 2;
+    // What the kernel charges a queued datagram on top of its data, a
+    // generous estimate of the Linux bookkeeping.
+    private final static int DATAGRAM_OVERHEAD = 1024;
     private int ackNumber;
     private int sequenceNumber;
-    private int sequenceRange;
+    private int windowSize;
+    private int maxPayload;
+    private boolean selectiveRepeat;
+    private TreeMap<Integer, Integer> reorderBuffer;
+    private ReceivedFile receivedFile;
+    private boolean fileClosed;
+    private long expectedSize;
+    private long deliveredOffset;
+    private boolean finReceived;
+    private int finEnd;
+    private int[] sackEdges;
+    private int sackBlocks;
+    private String sourceAddress;
+    private String destAddress;
+    private String receiveSource;
+    private String receiveDest;
+    private String logMode;
+    private long logFlushInterval;
+    private boolean connected;
+    private boolean finished;
+    private long lastActivity;
+    private String decision;
+    private Selector selector;
+
+    // Delayed acks: the ack waiting to be sent, covering pendingAcks
+    // segments delivered in order, and the time it is due. ackBatch is
+    // how many segments are acked together now, at most ackEvery.
+    private int ackEvery;
+    private long ackDelay;
+    private int ackBatch;
+    private int pendingAcks;
+    private int pendingSeqNum;
+    private int pendingAckNum;
+    private byte pendingFlag;
+    private long ackDeadline;
+
+    // Flow control: this connection's share of the socket receive buffer
+    // and the receive window limit given with -rwnd, 0 for none.
+    private int receiveBufferSize;
+    private int receiveWindowLimit;
+    private int metricsPort;
+
+    // Shared by all the connections of the server, see Metrics
+    private final static Metrics metrics = new Metrics();
+    private final static LongAdder bytesReceived = metrics.counter("bytes_received");
+    private final static LongAdder segmentsReceived = metrics.counter("segments_received");
+    private final static LongAdder duplicates = metrics.counter("duplicates");
+    private final static LongAdder outOfOrder = metrics.counter("out_of_order");
+    private final static LongAdder checksumFailures = metrics.counter("checksum_failures");
+    private final static LongAdder acksSent = metrics.counter("acks_sent");
 
     public static void main(String[] args) {
-        if (args.length != 5) {
+        if (args.length > 0 && args[0].equals("-server")) {
+            if (args.length < 4 || args.length % 2 != 0)
+                printArguments();
+            ReceiverServer.runServer(args);
+        } else if (args.length < 5 || args.length % 2 == 0) {
             printArguments();
         } else {
             runReceiver(args);
@@ -28,85 +98,62 @@ public class TCPreceiver {
     }
 
     private String getRecieveSource() {
-        return this.getAckSocket().getLocalSocketAddress().toString().substring(1);
+        return this.getAckSocket().socket().getLocalSocketAddress().toString().substring(1);
     }
 
     private String getReceiveDest() {
         return this.getSenderAddress().toString().substring(1) + ":" + this.getSenderPort();
     }
 
-    private static void printArguments() {
+    static void printArguments() {
         System.out.println("java TCPreceiver <filename> <listening_port>"
-                + " <sender_IP> <sender_port> <log_filename>");
+                + " <sender_IP> <sender_port> <log_filename> [-mode gbn|sr]"
+                + " [-size <bytes>] [-log sync|async|binary] [-logflush <ms>]"
+                + " [-ackevery <n>] [-ackdelay <ms>] [-rwnd <segments>] [-metrics <port>]\n"
+                + "java TCPreceiver -server <listening_port> <directory> <log_filename>"
+                + " [-log sync|async|binary] [-logflush <ms>] [-ackevery <n>] [-ackdelay <ms>]"
+                + " [-rwnd <segments>] [-metrics <port>]\n"
+                + "-mode default gbn, -size preallocates the file when its size is known,"
+                + " -log default sync, -logflush default 100,\n"
+                + "-ackevery default 1, acks every n-th segment delivered in order,"
+                + " -ackdelay default 10, the longest an ack is delayed,\n"
+                + "-rwnd limits the receive window, which by default is what fits in the socket buffer,\n"
+                + "-metrics serves live metrics on http://127.0.0.1:<port>/metrics");
         System.exit(1);
     }
 
     private static void runReceiver(String[] args) {
-        TCPreceiver receiver = new TCPreceiver();
+        final TCPreceiver receiver = new TCPreceiver();
         LogWriter writer = new LogWriter();
 
         try {
             // Set up the receiver.
             receiver.setUp(args);
+            metrics.gauge("receive_window", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return receiver.getReceiveWindow();
+                }
+            });
+            exportMetrics(receiver.getMetricsPort());
             DatagramExtractor extractor = new DatagramExtractor();
+            writer.setAsync(receiver.getLogMode().equals("async"));
+            writer.setBinary(receiver.getLogMode().equals("binary"));
+            writer.setFlushInterval(receiver.getLogFlushInterval());
             writer.setUp(receiver.getLogFilename());
-            BufferedWriter socketWriter = null;
-
-            while (true) {
-
-                // Create byte array for the next incoming packet.
-                byte[] incomingSegment = new byte[MSS];
-                DatagramPacket packet = new DatagramPacket(incomingSegment,
-                        incomingSegment.length);
-
-                // Receive the packet.
-                receiver.getListenSocket().receive(packet);
 
-                // Retrieve the data.
-                incomingSegment = packet.getData();
+            ByteBuffer segment = receiver.getReceiveBuffer();
 
-                int originalSize = extractor.retrieveOriginalSize(incomingSegment) + 20;
+            while (true) {
 
-                if (originalSize < 0) {
+                // Receive the next packet into the reused buffer.
+                segment.clear();
+                receiver.receiveDatagram(segment, writer);
+                if (!limitToDatagram(segment, extractor)) {
                     continue;
                 }
-
-                byte[] correctSegment = new byte[originalSize];
-                try {
-                    System.arraycopy(incomingSegment, 0, correctSegment, 0, originalSize);
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    continue;
-                }
-
-                // Set all the variables.
-                String sourceAddress = receiver.getSourceAddress();
-                String destinationAddress = receiver.getDestAddress();
-                int seqNum = extractor.extractSequenceNumberFromHeader(correctSegment);
-                int ackNum = extractor.extractAckNumberFromHeader(correctSegment);
-                byte flag = extractor.extractFlagsFromHeader(correctSegment);
-                short windowSize = extractor.extractWindowSizeFromHeader(correctSegment);
-
-                // Write to log file.
-                writer.writeToLog(false, sourceAddress, destinationAddress, 
-                    seqNum, ackNum, flag, 0, "Received");
-
-                if (receiver.sequenceNumbersMatch(seqNum) && extractor.checkCheckSum(correctSegment)) {
-                    receiver.setSequenceRange((int)windowSize * 2);
-                    byte[] data = extractor.extractDataFromMessage(correctSegment);
-                    receiver.writeByteArrayToFile(data);
-
-                    int updatedSeq = receiver.updateSeqNumber();
-                    receiver.setSequenceNumber(updatedSeq);
-                    System.out.println("next expected seqNum: " + receiver.getSequenceNumber());
-                    if (receiver.getAckSocket() == null)
-                        receiver.setAckSocket(receiver.getSenderAddress(), receiver.getSenderPort());
-                        socketWriter = receiver.createSockOut();
-                    receiver.writeResponse(updatedSeq, ackNum, flag, socketWriter);
-
-                    receiver.writeSentLog(updatedSeq, ackNum, flag, writer);
-                    if (receiver.isFinOn(flag)) {
-                        break;
-                    }
+                if (receiver.receiveSegment(segment, extractor, writer)) {
+                    break;
                 }
             }
         } catch (UnknownHostException e) {
@@ -120,58 +167,486 @@ public class TCPreceiver {
             System.exit(1);
         }
         System.out.println("Delivery completed successfully");
+        System.out.println("CPU time (ms) = " + Metrics.getProcessCpuMillis());
+        System.out.println("Peak heap (bytes) = " + Metrics.getPeakHeap());
         writer.close();
-        receiver.getListenSocket().close();
+        metrics.close();
+        try {
+            receiver.getListenSocket().close();
+            receiver.getReceivedFile().close();
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+        }
+    }
+
+    /*
+     * Export the metrics over JMX and, with -metrics, over HTTP. Failing
+     * to export them does not stop the transfer.
+     */
+    static void exportMetrics(int port) {
+        try {
+            metrics.register("TCPreceiver:type=Metrics");
+            if (port > 0)
+                metrics.serve(port);
+        } catch (JMException e) {
+            System.out.println(e.getLocalizedMessage());
+        } catch (IOException e) {
+            System.out.println(e.getLocalizedMessage());
+        }
+    }
+
+    static Metrics getMetrics() {
+        return metrics;
+    }
+
+    /*
+     * Receive the next datagram into the buffer. With delayed acks the
+     * channel does not block, so that a delayed ack is still sent when it
+     * is due and nothing else arrived.
+     */
+    private void receiveDatagram(ByteBuffer segment, LogWriter writer) throws IOException {
+        if (this.selector == null) {
+            this.getListenSocket().receive(segment);
+            return;
+        }
+        while (this.getListenSocket().receive(segment) == null) {
+            long wait = 0;
+            if (this.ackDeadline != 0) {
+                wait = this.ackDeadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    this.flushAck(writer);
+                    continue;
+                }
+            }
+            this.selector.select(wait);
+            this.selector.selectedKeys().clear();
+        }
+    }
+
+    /*
+     * Check the size of the datagram just received into the buffer and
+     * limit the buffer to it. Returns false if it is too short.
+     */
+    static boolean limitToDatagram(ByteBuffer segment, DatagramExtractor extractor) {
+        int receivedSize = segment.position();
+        if (receivedSize < DatagramExtractor.HEADER_SIZE) {
+            return false;
+        }
+
+        int originalSize = extractor.retrieveOriginalSize(segment);
+
+        if (originalSize < DatagramExtractor.HEADER_SIZE || originalSize > receivedSize) {
+            return false;
+        }
+        segment.limit(originalSize);
+        return true;
+    }
+
+    /*
+     * Handle one datagram of this connection, the buffer holds it from
+     * index 0 to its limit. Returns true once the segment carrying the
+     * FIN flag is delivered.
+     */
+    boolean receiveSegment(ByteBuffer segment, DatagramExtractor extractor,
+            LogWriter writer) throws IOException {
+        FlightEvents.SegmentReceived event = new FlightEvents.SegmentReceived();
+        event.begin();
+        int seqNum = extractor.extractSequenceNumberFromHeader(segment);
+        int dataLength = extractor.getDataLength(segment);
+        boolean finDelivered = this.handleSegment(segment, extractor, writer);
+        if (event.shouldCommit()) {
+            event.seq = seqNum;
+            event.length = dataLength;
+            event.decision = this.decision;
+            event.accepted = this.decision.equals("delivered") || this.decision.equals("buffered");
+            event.expected = this.getSequenceNumber();
+            event.window = this.getReceiveWindow();
+            event.buffered = this.reorderBuffer.size();
+            event.commit();
+        }
+        return finDelivered;
+    }
+
+    /*
+     * The protocol of receiveSegment. What it does with the datagram is
+     * left in decision for the flight recorder.
+     */
+    private boolean handleSegment(ByteBuffer segment, DatagramExtractor extractor,
+            LogWriter writer) throws IOException {
+        this.lastActivity = System.currentTimeMillis();
+        segmentsReceived.increment();
+
+        // Set all the variables.
+        String sourceAddress = this.getSourceAddress();
+        String destinationAddress = this.getDestAddress();
+        int seqNum = extractor.extractSequenceNumberFromHeader(segment);
+        int ackNum = extractor.extractAckNumberFromHeader(segment);
+        byte flag = extractor.extractFlagsFromHeader(segment);
+        short windowSize = extractor.extractWindowSizeFromHeader(segment);
+
+        // Write to log file.
+        writer.writeToLog(false, sourceAddress, destinationAddress, 
+            seqNum, ackNum, flag, 0, "Received");
+
+        // A corrupted datagram is dropped and left to the sender's timer.
+        if (!extractor.checkCheckSum(segment)) {
+            checksumFailures.increment();
+            this.decision = "corrupt";
+            return false;
+        }
+
+        if (isSynOn(flag)) {
+            this.decision = "syn";
+            this.acceptSyn(seqNum, segment, writer);
+            return false;
+        }
+
+        if (this.isSelectiveRepeat()) {
+            this.setWindowSize(windowSize);
+            return this.receiveSelectiveRepeat(seqNum, flag, segment, extractor, writer);
+        } else if (this.sequenceNumbersMatch(seqNum)) {
+            this.setWindowSize(windowSize);
+            int dataLength = extractor.getDataLength(segment);
+            this.writeSegmentToFile(segment, this.getDeliveredOffset());
+            this.setDeliveredOffset(this.getDeliveredOffset() + dataLength);
+            bytesReceived.add(dataLength);
+            this.decision = "delivered";
+
+            int updatedSeq = this.updateSeqNumber(dataLength, flag);
+            this.setSequenceNumber(updatedSeq);
+            this.delayAck(seqNum, updatedSeq, flag, writer);
+            return this.isFinOn(flag);
+        } else {
+            // Out of order, repeat the cumulative ack so the sender
+            // can retransmit without waiting for its timer.
+            if (SequenceNumber.distance(this.getSequenceNumber(), seqNum) < 0) {
+                duplicates.increment();
+                this.decision = "duplicate";
+            } else {
+                outOfOrder.increment();
+                this.decision = "out of order";
+            }
+            this.sendAck(seqNum, this.getSequenceNumber(), flag, writer);
+            return false;
+        }
+    }
+
+    /*
+     * The SYN datagram opens the connection: it gives the port to ack to,
+     * the mode, the length of the file, the offset the data goes to and
+     * the segment size, and its sequence number comes just before the
+     * first segment. It is acked with SYN-ACK on the new
+     * ack connection, repeated SYNs are ignored since that connection
+     * already delivers the answer.
+     */
+    private void acceptSyn(int seqNum, ByteBuffer segment, LogWriter writer)
+            throws IOException {
+        ConnectionRequest request = new ConnectionRequest();
+        if (this.connected || !request.read(segment, DatagramExtractor.HEADER_SIZE))
+            return;
+        this.connected = true;
+        this.setSenderPort(request.getAckPort());
+        this.setSelectiveRepeat(request.isSelectiveRepeat());
+        this.setSequenceNumber(SequenceNumber.add(seqNum, 1));
+        this.setDeliveredOffset(request.getOffset());
+        if (request.getSegmentSize() > 0)
+            this.maxPayload = request.getSegmentSize();
+        if (request.getFileLength() > 0)
+            this.getReceivedFile().preallocate(request.getFileLength());
+        this.sendAck(seqNum, this.getSequenceNumber(), SYN_ACK_FLAG, writer);
+    }
+
+    /*
+     * Selective repeat: write every segment inside the receive window to
+     * its place in the file and ack each one. The reorder buffer only keeps
+     * the sequence range of the segments after a hole, the in-order run at
+     * the window base is delivered by moving past it.
+     * Segments that were already delivered are acked again, since their
+     * ack may still be on the way to the sender.
+     * Returns true once the segment carrying the FIN flag is delivered.
+     */
+    private boolean receiveSelectiveRepeat(int seqNum, byte flag, ByteBuffer segment,
+            DatagramExtractor extractor, LogWriter writer) throws IOException {
+        int distance = SequenceNumber.distance(this.getSequenceNumber(), seqNum);
+        if (distance < 0) {
+            duplicates.increment();
+            this.decision = "duplicate";
+            this.sendAck(seqNum, this.getSequenceNumber(), flag, writer);
+            return false;
+        }
+
+        // The window is counted in segments, bound it by the largest seen.
+        this.maxPayload = Math.max(this.maxPayload, extractor.getDataLength(segment));
+        if (distance >= (long) this.getWindowSize() * Math.max(1, this.maxPayload)) {
+            this.decision = "outside window";
+            return false;
+        }
+
+        // Only an ack for the next segment with no hole behind it is delayed
+        boolean inOrder = distance == 0 && this.reorderBuffer.isEmpty();
+        if (this.reorderBuffer.containsKey(seqNum)) {
+            duplicates.increment();
+            this.decision = "duplicate";
+        } else {
+            int dataLength = extractor.getDataLength(segment);
+            this.writeSegmentToFile(segment, this.getDeliveredOffset() + distance);
+            bytesReceived.add(dataLength);
+            if (distance > 0)
+                outOfOrder.increment();
+            this.decision = distance > 0 ? "buffered" : "delivered";
+            int end = SequenceNumber.add(seqNum, this.isFinOn(flag) ? dataLength + 1 : dataLength);
+            this.reorderBuffer.put(seqNum, end);
+            if (this.isFinOn(flag)) {
+                this.finReceived = true;
+                this.finEnd = end;
+            }
+        }
+
+        Integer next = this.reorderBuffer.remove(this.getSequenceNumber());
+        while (next != null) {
+            this.setDeliveredOffset(this.getDeliveredOffset()
+                    + SequenceNumber.distance(this.getSequenceNumber(), next));
+            this.setSequenceNumber(next);
+            next = this.reorderBuffer.remove(this.getSequenceNumber());
+        }
+        boolean finDelivered = this.finReceived && this.getSequenceNumber() == this.finEnd;
+        if (inOrder) {
+            this.delayAck(seqNum, this.getSequenceNumber(), flag, writer);
+            return finDelivered;
+        }
+        this.buildSackBlocks(seqNum);
+        this.sendAck(seqNum, this.getSequenceNumber(), flag, writer);
+        this.sackBlocks = 0;
+        return finDelivered;
+    }
+
+    /*
+     * Report the ranges still waiting in the reorder buffer as SACK blocks.
+     * As in RFC 2018 the first block is the one holding the segment that
+     * triggered the ack, the others follow in sequence order.
+     */
+    private void buildSackBlocks(int seqNum) {
+        this.sackBlocks = 0;
+        int triggerLeft = 0;
+        int triggerRight = 0;
+        boolean haveTrigger = false;
+
+        // First pass finds the block holding the triggering segment
+        int left = 0;
+        int right = 0;
+        boolean open = false;
+        for (Map.Entry<Integer, Integer> entry : this.reorderBuffer.entrySet()) {
+            int start = entry.getKey();
+            if (!open || start != right) {
+                if (open && !SequenceNumber.isBefore(seqNum, left)
+                        && SequenceNumber.isBefore(seqNum, right)) {
+                    triggerLeft = left;
+                    triggerRight = right;
+                    haveTrigger = true;
+                }
+                left = start;
+                open = true;
+            }
+            right = entry.getValue();
+        }
+        if (open && !SequenceNumber.isBefore(seqNum, left)
+                && SequenceNumber.isBefore(seqNum, right)) {
+            triggerLeft = left;
+            triggerRight = right;
+            haveTrigger = true;
+        }
+        if (haveTrigger)
+            this.addSackBlock(triggerLeft, triggerRight);
+
+        // Second pass adds the other blocks in order
+        open = false;
+        for (Map.Entry<Integer, Integer> entry : this.reorderBuffer.entrySet()) {
+            if (this.sackBlocks == AckFrame.MAX_SACK_BLOCKS)
+                return;
+            int start = entry.getKey();
+            if (!open || start != right) {
+                if (open && !(haveTrigger && left == triggerLeft))
+                    this.addSackBlock(left, right);
+                left = start;
+                open = true;
+            }
+            right = entry.getValue();
+        }
+        if (open && this.sackBlocks < AckFrame.MAX_SACK_BLOCKS
+                && !(haveTrigger && left == triggerLeft))
+            this.addSackBlock(left, right);
+    }
+
+    private void addSackBlock(int left, int right) {
+        this.sackEdges[2 * this.sackBlocks] = left;
+        this.sackEdges[2 * this.sackBlocks + 1] = right;
+        this.sackBlocks++;
+    }
+
+    /*
+     * Ack a segment delivered in order. With -ackevery n only every n-th
+     * of them is acked at once, the ack of the others waits up to
+     * ackDelay ms and is then sent as one cumulative ack for all of them.
+     * The FIN is always acked at once, and so is anything out of order,
+     * since the sender needs those acks to recover.
+     *
+     * The window in the header is the most the sender may send, not what
+     * its congestion window lets it have in flight, so the batch starts
+     * at every second segment and grows by one each time the sender
+     * fills it. When the delay runs out the sender has sent all it could,
+     * and the batch drops to half the segments it held, so at least two
+     * acks go out per flight.
+     */
+    private void delayAck(int seqNum, int ackNum, byte flag, LogWriter writer)
+            throws IOException {
+        int every = Math.min(this.ackEvery, this.ackBatch);
+        if (every <= 1 || this.isFinOn(flag)) {
+            this.sendAck(seqNum, ackNum, flag, writer);
+            return;
+        }
+        this.pendingAcks++;
+        this.pendingSeqNum = seqNum;
+        this.pendingAckNum = ackNum;
+        this.pendingFlag = flag;
+        if (this.pendingAcks >= every) {
+            this.ackBatch = Math.min(this.ackEvery, this.ackBatch + 1);
+            this.sendAck(this.pendingSeqNum, this.pendingAckNum, this.pendingFlag, writer);
+        } else if (this.ackDeadline == 0)
+            this.ackDeadline = System.currentTimeMillis() + this.ackDelay;
+    }
+
+    /*
+     * Send the delayed ack, if there is one, when it is due.
+     */
+    void flushAck(LogWriter writer) throws IOException {
+        if (this.pendingAcks == 0)
+            return;
+        this.ackBatch = Math.max(INITIAL_ACK_BATCH, this.pendingAcks / 2);
+        this.sendAck(this.pendingSeqNum, this.pendingAckNum, this.pendingFlag, writer);
+    }
+
+    /*
+     * Ack the segment with the given sequence number, ackNum is the
+     * cumulative ack, the next sequence number the receiver expects.
+     * It covers any delayed ack as well.
+     */
+    private void sendAck(int seqNum, int ackNum, byte flag, LogWriter writer)
+            throws IOException {
+        this.pendingAcks = 0;
+        this.ackDeadline = 0;
+        if (this.getAckSocket() == null)
+            this.setAckSocket(this.getSenderAddress(), this.getSenderPort());
+        else if (!this.isAckSocketReady()) {
+            this.pendingAcks = 1;
+            this.pendingSeqNum = seqNum;
+            this.pendingAckNum = ackNum;
+            this.pendingFlag = flag;
+            return;
+        }
+        this.writeResponse(seqNum, ackNum, flag);
+        acksSent.increment();
+        this.writeSentLog(seqNum, ackNum, flag, writer);
     }
 
+    /*
+     * The addresses in the log never change during a transfer, so their
+     * strings are built once.
+     */
     private void writeSentLog(int updateSeq, int ackNum, byte flag,
             LogWriter writer) {
-        String receiveSource = this.getRecieveSource();
-        String receiveDest = this.getReceiveDest();
-        writer.writeToLog(false, receiveSource, receiveDest, updateSeq, ackNum,
+        if (this.receiveSource == null) {
+            this.receiveSource = this.getRecieveSource();
+            this.receiveDest = this.getReceiveDest();
+        }
+        writer.writeToLog(false, this.receiveSource, this.receiveDest, updateSeq, ackNum,
                 flag, 0, "Sent");
     }
 
     private String getSourceAddress() {
-        return getSenderAddress().getHostAddress() + ":" + getSenderPort();
+        if (this.sourceAddress == null)
+            this.sourceAddress = getSenderAddress().getHostAddress() + ":" + getSenderPort();
+        return this.sourceAddress;
     }
 
     private String getDestAddress() {
-        return getListenSocket().getLocalAddress() + ":" + getListeningPort();
+        if (this.destAddress == null)
+            this.destAddress = getListenSocket().socket().getLocalAddress() + ":" + getListeningPort();
+        return this.destAddress;
     }
 
     private boolean sequenceNumbersMatch(int seqNum) {
         return this.getSequenceNumber() == seqNum;
     }
 
-    private void writeByteArrayToFile(byte[] data) throws IOException {
-        FileOutputStream fos = new FileOutputStream(this.getReceivedFilename(), true);
-        fos.write(data);
-        fos.close();
+    /*
+     * Write the data of a segment at its offset in the file, straight
+     * from the receive buffer.
+     */
+    private void writeSegmentToFile(ByteBuffer segment, long offset)
+            throws IOException {
+        segment.position(DatagramExtractor.HEADER_SIZE);
+        this.getReceivedFile().write(segment, offset);
     }
 
-    private int updateSeqNumber() {
-        int seqNum = (this.getSequenceNumber() + 1) % this.getSequenceRange();
-        return seqNum;
+    /*
+     * The FIN flag takes one sequence number after the data.
+     */
+    private int updateSeqNumber(int dataLength, byte flag) {
+        int consumed = this.isFinOn(flag) ? dataLength + 1 : dataLength;
+        return SequenceNumber.add(this.getSequenceNumber(), consumed);
     }
 
-    private BufferedWriter createSockOut() throws IOException {
-        return new BufferedWriter(new OutputStreamWriter(this.getAckSocket()
-                .getOutputStream()));
+    /*
+     * Receive window advertised in every ack, in segments: the datagrams
+     * that still fit in this connection's share of the socket receive
+     * buffer, less the segments held out of order. With the sender keeping
+     * no more than that in flight, a receiver that is slow to write the
+     * file only lets datagrams queue up in the kernel instead of having
+     * them dropped. Never 0, so the sender needs no window probes.
+     */
+    private int getReceiveWindow() {
+        int datagramSize = DatagramExtractor.HEADER_SIZE
+                + (this.maxPayload > 0 ? this.maxPayload : DatagramGenerator.DEFAULT_MSS);
+        int window = this.receiveBufferSize / (datagramSize + DATAGRAM_OVERHEAD);
+        if (this.receiveWindowLimit > 0)
+            window = Math.min(window, this.receiveWindowLimit);
+        return Math.max(1, Math.min(0xffff, window - this.reorderBuffer.size()));
     }
 
-    private void writeResponse(int seqNum, int ackNum, byte flag,
-            BufferedWriter socketWriter) throws IOException {
-        String response = "SEQ " + seqNum + " ACK " + ackNum + " FLAG " + flag + "\n";
-        System.out.println(response);
-        socketWriter.write(response);
-        socketWriter.flush();
+    private void writeResponse(int seqNum, int ackNum, byte flag) throws IOException {
+        short window = (short) this.getReceiveWindow();
+        this.ackFrame.write(this.getAckSocket(), seqNum, ackNum, flag, window,
+                this.sackEdges, this.sackBlocks);
     }
 
     private boolean isFinOn(byte flags) {
         return flags == 17 ? true : false;
     }
 
+    static boolean isSynOn(byte flags) {
+        return (flags & 2) != 0;
+    }
+
+    /*
+     * Give up this connection's use of the file, only once since the file
+     * may be shared with other connections.
+     */
+    void closeFile() throws IOException {
+        if (this.fileClosed)
+            return;
+        this.fileClosed = true;
+        this.getReceivedFile().close();
+    }
+
+    /*
+     * Close the file and the ack connection of this connection.
+     */
+    void close() throws IOException {
+        this.closeFile();
+        if (this.getAckSocket() != null)
+            this.getAckSocket().close();
+    }
+
     public TCPreceiver() {
         this.listeningPort = 0;
         this.senderPort = 0;
@@ -179,10 +654,50 @@ public class TCPreceiver {
         this.receivedFilename = null;
         this.senderAddress = null;
         this.ackSocket = null;
+        this.ackFrame = new AckFrame();
         this.listenSocket = null;
+        this.receiveBuffer = null;
         this.ackNumber = 0;
         this.sequenceNumber = 0;
-        this.sequenceRange = 0;
+        this.windowSize = 0;
+        this.maxPayload = 0;
+        this.selectiveRepeat = false;
+        this.reorderBuffer = new TreeMap<Integer, Integer>(new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return SequenceNumber.compare(a, b);
+            }
+        });
+        this.sackEdges = new int[2 * AckFrame.MAX_SACK_BLOCKS];
+        this.sackBlocks = 0;
+        this.sourceAddress = null;
+        this.destAddress = null;
+        this.receiveSource = null;
+        this.receiveDest = null;
+        this.logMode = "sync";
+        this.logFlushInterval = 100;
+        this.connected = false;
+        this.finished = false;
+        this.lastActivity = 0;
+        this.decision = null;
+        this.selector = null;
+        this.ackEvery = 1;
+        this.ackDelay = DEFAULT_ACK_DELAY;
+        this.ackBatch = INITIAL_ACK_BATCH;
+        this.pendingAcks = 0;
+        this.pendingSeqNum = 0;
+        this.pendingAckNum = 0;
+        this.pendingFlag = 0;
+        this.ackDeadline = 0;
+        this.receiveBufferSize = DatagramExtractor.SOCKET_BUFFER_SIZE;
+        this.receiveWindowLimit = 0;
+        this.metricsPort = 0;
+        this.receivedFile = new ReceivedFile();
+        this.fileClosed = false;
+        this.expectedSize = 0;
+        this.deliveredOffset = 0;
+        this.finReceived = false;
+        this.finEnd = 0;
     }
 
     public void setUp(String[] args) throws UnknownHostException,
@@ -194,8 +709,56 @@ public class TCPreceiver {
         this.setLogFilename(args[4]);
         this.setListenSocket(this.getListeningPort());
         this.setAckNumber(0);
-        this.setSequenceNumber(0);
-        this.setSequenceRange(2);
+        this.setSequenceNumber(SequenceNumber.INITIAL_SEQUENCE_NUMBER);
+        this.setWindowSize(1);
+        for (int i = 5; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-mode") && (args[i + 1].equals("gbn") || args[i + 1].equals("sr")))
+                this.setSelectiveRepeat(args[i + 1].equals("sr"));
+            else if (args[i].equals("-size"))
+                this.setExpectedSize(Long.parseLong(args[i + 1]));
+            else if (args[i].equals("-log") && (args[i + 1].equals("sync")
+                    || args[i + 1].equals("async") || args[i + 1].equals("binary")))
+                this.setLogMode(args[i + 1]);
+            else if (args[i].equals("-logflush"))
+                this.setLogFlushInterval(Long.parseLong(args[i + 1]));
+            else if (args[i].equals("-ackevery") && Integer.parseInt(args[i + 1]) > 0)
+                this.setAckEvery(Integer.parseInt(args[i + 1]));
+            else if (args[i].equals("-ackdelay") && Long.parseLong(args[i + 1]) > 0)
+                this.setAckDelay(Long.parseLong(args[i + 1]));
+            else if (args[i].equals("-rwnd") && Integer.parseInt(args[i + 1]) > 0)
+                this.setReceiveWindowLimit(Integer.parseInt(args[i + 1]));
+            else if (args[i].equals("-metrics") && Integer.parseInt(args[i + 1]) > 0)
+                this.setMetricsPort(Integer.parseInt(args[i + 1]));
+            else printArguments();
+        }
+        this.setReceiveBufferSize(
+                this.getListenSocket().getOption(StandardSocketOptions.SO_RCVBUF));
+        if (this.getAckEvery() > 1) {
+            this.selector = Selector.open();
+            this.getListenSocket().configureBlocking(false);
+            this.getListenSocket().register(this.selector, SelectionKey.OP_READ);
+        }
+        this.getReceivedFile().open(this.getReceivedFilename(), this.getExpectedSize());
+    }
+
+    public void setSelectiveRepeat(boolean selectiveRepeat) {
+        this.selectiveRepeat = selectiveRepeat;
+    }
+
+    public void setLogMode(String logMode) {
+        this.logMode = logMode;
+    }
+
+    public void setLogFlushInterval(long logFlushInterval) {
+        this.logFlushInterval = logFlushInterval;
+    }
+
+    public void setExpectedSize(long expectedSize) {
+        this.expectedSize = expectedSize;
+    }
+
+    public void setDeliveredOffset(long deliveredOffset) {
+        this.deliveredOffset = deliveredOffset;
     }
 
     public void setListeningPort(int listeningPort) {
@@ -218,13 +781,87 @@ public class TCPreceiver {
         this.senderAddress = senderAddress;
     }
 
-    public void setListenSocket(int listenPortNumber) throws SocketException {
-        this.listenSocket = new DatagramSocket(listenPortNumber);
+    public void setListenSocket(int listenPortNumber) throws IOException {
+        this.listenSocket = DatagramChannel.open();
+        this.listenSocket.setOption(StandardSocketOptions.SO_RCVBUF,
+                DatagramExtractor.SOCKET_BUFFER_SIZE);
+        this.listenSocket.bind(new InetSocketAddress(listenPortNumber));
+    }
+
+    /*
+     * In server mode every connection shares the channel of the server.
+     */
+    public void setListenSocket(DatagramChannel listenSocket) {
+        this.listenSocket = listenSocket;
+    }
+
+    public void setAckEvery(int ackEvery) {
+        this.ackEvery = ackEvery;
+    }
+
+    public void setAckDelay(long ackDelay) {
+        this.ackDelay = ackDelay;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public void setReceiveWindowLimit(int receiveWindowLimit) {
+        this.receiveWindowLimit = receiveWindowLimit;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public void setFinished(boolean finished) {
+        this.finished = finished;
     }
 
     public void setAckSocket(InetAddress senderAddress, int senderPortNumber)
             throws IOException {
-        this.ackSocket = new Socket(senderAddress, senderPortNumber);
+        this.ackSocket = SocketChannel.open(new InetSocketAddress(senderAddress, senderPortNumber));
+        this.ackSocket.socket().setTcpNoDelay(true);
+    }
+
+    /*
+     * Start connecting the ack connection without blocking, for the
+     * server whose selector reports OP_CONNECT when finishAckConnect can
+     * complete it. Acks until then are held like a delayed ack.
+     */
+    void connectAckSocket(Selector selector) throws IOException {
+        this.ackSocket = SocketChannel.open();
+        this.ackSocket.configureBlocking(false);
+        this.ackSocket.socket().setTcpNoDelay(true);
+        if (!this.ackSocket.connect(new InetSocketAddress(this.getSenderAddress(),
+                this.getSenderPort())))
+            this.ackSocket.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+
+    /*
+     * Returns true once the ack connection is connected. Its key is
+     * cancelled, the selector drops it on its next select.
+     */
+    boolean finishAckConnect(SelectionKey key) throws IOException {
+        if (!this.ackSocket.finishConnect())
+            return false;
+        key.cancel();
+        return true;
+    }
+
+    /*
+     * Acks are written on a blocking channel, a 36 byte frame is never
+     * written in part. The channel of the server is switched back to
+     * blocking once it is connected and no longer registered.
+     */
+    private boolean isAckSocketReady() throws IOException {
+        if (this.ackSocket.isBlocking())
+            return true;
+        if (this.ackSocket.isConnectionPending() || this.ackSocket.isRegistered())
+            return false;
+        this.ackSocket.configureBlocking(true);
+        return true;
     }
 
     public void setSequenceNumber(int sequenceNumber) {
@@ -235,8 +872,71 @@ public class TCPreceiver {
         this.ackNumber = ackNumber;
     }
 
-    public void setSequenceRange(int sequenceRange) {
-        this.sequenceRange = sequenceRange;
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public boolean isSelectiveRepeat() {
+        return this.selectiveRepeat;
+    }
+
+    public int getAckEvery() {
+        return this.ackEvery;
+    }
+
+    public long getAckDelay() {
+        return this.ackDelay;
+    }
+
+    /*
+     * Time the delayed ack is due, 0 when there is none.
+     */
+    public long getAckDeadline() {
+        return this.ackDeadline;
+    }
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    public int getReceiveWindowLimit() {
+        return this.receiveWindowLimit;
+    }
+
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    public long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    public String getLogMode() {
+        return this.logMode;
+    }
+
+    public long getLogFlushInterval() {
+        return this.logFlushInterval;
+    }
+
+    public long getExpectedSize() {
+        return this.expectedSize;
+    }
+
+    public long getDeliveredOffset() {
+        return this.deliveredOffset;
+    }
+
+    public void setReceivedFile(ReceivedFile receivedFile) {
+        this.receivedFile = receivedFile;
+    }
+
+    public ReceivedFile getReceivedFile() {
+        return this.receivedFile;
     }
 
     public int getListeningPort() {
@@ -259,11 +959,21 @@ public class TCPreceiver {
         return this.senderAddress;
     }
 
-    public DatagramSocket getListenSocket() {
+    public DatagramChannel getListenSocket() {
         return this.listenSocket;
     }
 
-    public Socket getAckSocket() {
+    /*
+     * Allocated on first use, the connections of the server share the
+     * buffer of the server instead.
+     */
+    public ByteBuffer getReceiveBuffer() {
+        if (this.receiveBuffer == null)
+            this.receiveBuffer = ByteBuffer.allocateDirect(DatagramExtractor.MAX_DATAGRAM_SIZE);
+        return this.receiveBuffer;
+    }
+
+    public SocketChannel getAckSocket() {
         return this.ackSocket;
     }
 
@@ -275,7 +985,7 @@ public class TCPreceiver {
         return this.ackNumber;
     }
 
-    public int getSequenceRange() {
-        return this.sequenceRange;
+    public int getWindowSize() {
+        return this.windowSize;
     }
 }
\ No newline at end of file
@@ -1,8 +1,18 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
-import java.util.ArrayList;
-import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
+import javax.management.JMException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * Send the list of the datagrams to the specified receiver 
@@ -11,214 +21,945 @@ import java.util.Date;
  * Using the GBN protocol to provide a pipeline implementation
  */
 public class TCPsender {
-	private static ArrayList<byte[]> datagrams;
-	private static ArrayList<Long> datagramRecord;
+	private DatagramGenerator generator;
+	private int segmentCount;
+	private byte[][] window;
+	private int windowBufferSize;
+	private int[] windowLengths;
+	private long[] sendTimes;
+	private boolean[] retransmitted;
+	private boolean[] acked;
+	private boolean[] timedOut;
+	private int pendingTimeouts;
+	private RetransmissionTimer timer;
+	private CongestionController congestionController;
+	private String congestionControl;
+	private int duplicateAcks;
+	private boolean fastRetransmit;
+	private int highestSacked;
+	private int recoveryPoint;
+	// UNKNOWN_WINDOW until the receiver advertises one, 0 when it is closed
+	private int receiveWindow;
+	private boolean windowProbe;
+	private final ReentrantLock windowLock = new ReentrantLock();
+	private final Condition windowChanged = windowLock.newCondition();
+	private boolean selectiveRepeat;
 	private int ackPort;
 	private int receiverPort;
 	private String sendFileName;
 	private String logFileName;
-	private static int windowSize;
-	private static DatagramSocket sendSocket;
-	private ServerSocket ackSocket;
+	private int windowSize;
+	private DatagramSocket sendSocket;
+	private DatagramChannel sendChannel;
+	private boolean zeroCopy;
+	private int maxSegmentSize;
+	private ServerSocketChannel ackSocket;
 	private InetAddress receiverAddress;
-	private static long timeout;
-	private static long estimatedRTT;
-	private static long devRTT;
-	private static int sequenceRange;
-	private static int totalBytesSent;
-	private static int totalSegmentsSent;
-	private static int retransmissions;
+	private String sentSource;
+	private String sentDestination;
+	private String ackSource;
+	private String ackDestination;
+	private String logMode;
+	private byte checksumAlgorithm;
+	private String remoteFilename;
+	private int stripeCount;
+	// Set once every segment of the range of this pipeline is acked
+	private boolean completed;
+	private Pacer pacer;
+	private long pacingRate;
+	private int pacingBurst;
+	private long pacingRTT;
+	private long logFlushInterval;
+	private long timeout;
+	// Smoothed RTT and its deviation in microseconds
+	private long estimatedRTT;
+	private long devRTT;
+	private long rttSample;
+	private int metricsPort;
 	private static LogWriter writer;
 
-	private static int sendBase;
-	private static int nextSequence;
-	private static boolean baseACK;
+	// Shared by all the stripes, see Metrics
+	private final static Metrics metrics = new Metrics();
+	private final static LongAdder bytesSent = metrics.counter("bytes_sent");
+	private final static LongAdder segmentsSent = metrics.counter("segments_sent");
+	private final static LongAdder retransmissions = metrics.counter("retransmissions");
+	private final static LongAdder acksReceived = metrics.counter("acks_received");
+	private final static LongAdder duplicateAckCount = metrics.counter("duplicate_acks");
+	private final static LongAdder timeouts = metrics.counter("timeouts");
+	private final static Histogram rttHistogram = metrics.histogram("rtt_us");
+
+	private int sendBase;
+	private int nextSequence;
+	private int nextGenerated;
 
 	private final static int SEQ_NUM_INDEX = 4;
     private final static int ACK_NUM_INDEX = 8;
     private final static int FLAG_INDEX = 13;
-    private final static int INT_BYTE_SIZE = 4;
     private final static double ALPHA = 0.125;
     private final static double BETA = 0.25;
+    private final static int DUPLICATE_ACK_THRESHOLD = 3;
+    // Retransmission timeout in ms before the first RTT sample, and its
+    // bounds (RFC 6298 recommends at least a second, Linux uses 200 ms)
+    private final static long INITIAL_RTO = 1000;
+    private final static long MIN_RTO = 200;
+    private final static long MAX_RTO = 60000;
+    private final static byte SYN_ACK_FLAG = 18;
+    private final static long SYN_TIMEOUT = 1000;
+    private final static int SYN_RETRIES = 6;
+    private final static int UNKNOWN_WINDOW = -1;
+    // Most the datagrams of a window may take on the heap
+    private final static long MAX_WINDOW_BYTES = 256L << 20;
+    // Automatic pacing runs a little faster than a window per RTT so the
+    // pacer does not hold back a congestion window that is growing.
+    private final static double PACING_GAIN = 1.25;
+    private final static long MIN_PACING_RTT = 10000;
+    private final static long AUTO_PACING = -1;
+    private final static int AUTO_MSS = -1;
+    private final static int UDP_HEADER_SIZE = 8;
 
 	public static void main(String[] args) {
-		if (args.length != 5 && args.length != 6)
+		if (args.length < 5)
 			printInstructions();
 		else runSender(args);
 	}
 	
 	private static void printInstructions() {
 		System.out.println("java TCPsender <filename> <remote_IP> <remote_port>"
-                		 + " <ack_port_num> <log_filename> <window_size>\n"
-                		 + "<window_size> default 1");
+                		 + " <ack_port_num> <log_filename> <window_size> [-mode gbn|sr]"
+                		 + " [-cc none|reno|cubic] [-log sync|async|binary] [-logflush <ms>]"
+                		 + " [-checksum inet|crc32c] [-connect <remote_filename>] [-stripes <n>]\n"
+                		 + " [-pace <bytes_per_second>|auto] [-paceburst <datagrams>] [-zerocopy on|off]\n"
+                		 + " [-mss <bytes>|auto] [-metrics <port>]\n"
+                		 + "<window_size> default 1, at most 32767, -mode default gbn, -cc default none,"
+                		 + " -log default sync, -logflush default 100, -checksum default crc32c,\n"
+                		 + "-connect opens the connection with a SYN, needed by a receiver in server mode,\n"
+                		 + "-stripes default 1, more stripes need -connect and use ack ports from <ack_port_num> on,\n"
+                		 + "-pace default off, auto paces a congestion window per RTT, -paceburst default 4,\n"
+                		 + "-zerocopy default off, sends the data straight from the memory mapped file,\n"
+                		 + "-mss default 552, at most 65483, auto fits the MTU of the outgoing interface,\n"
+                		 + "without -zerocopy the window may take at most 256 MB, <window_size> times the mss,\n"
+                		 + "-metrics serves live metrics on http://127.0.0.1:<port>/metrics");
 		System.exit(1);
 	}
 
-	public static class GBNProtocol extends Thread {
-		private static long startTime;
-		private static long currTime;
+	public class GBNProtocol extends Thread {
 		private TCPsender sender;
+		private int timerBase;
 
 		public GBNProtocol(TCPsender sender) {
-			this.startTime = 0;
-			this.currTime = 0;
 			this.sender = sender;
+			this.timerBase = -1;
 		}
 
 		@Override
 		public void run() {
-			while (sendBase < datagrams.size()) {
-				startTime = System.currentTimeMillis();
-				baseACK = false;
-
-				while (nextSequence < sendBase + windowSize && nextSequence < datagrams.size()) {
-					byte[] datagram = datagrams.get(nextSequence);
-					if (nextSequence >= datagramRecord.size())
-						datagramRecord.add(System.currentTimeMillis());
-
-					DatagramPacket packet = new DatagramPacket(datagram, datagram.length, 
-						sender.getReceiverAddress(), sender.getReceiverPort());
-					// send packet
-					try {
-						sender.sendPacket(packet);
-					} catch (IOException e) {
-						e.printStackTrace();
+			windowLock.lock();
+			try {
+				while (sendBase < segmentCount) {
+					// Acks that arrived after going back may have passed nextSequence
+					if (nextSequence < sendBase)
+						nextSequence = sendBase;
+
+					while (nextSequence < sendBase + getEffectiveWindow() && nextSequence < segmentCount) {
+						// Acks may move the window while waiting for the pacer
+						if (sender.awaitPacer())
+							continue;
+						// Only the in-flight window is kept, a segment is read from
+						// the file the first time it enters the window.
+						int slot = nextSequence % windowSize;
+						if (nextSequence >= nextGenerated) {
+							windowLengths[slot] = generator.generateDatagram(nextSequence,
+								sender.getWindowBuffer(slot));
+							sendTimes[slot] = System.nanoTime();
+							retransmitted[slot] = false;
+							nextGenerated++;
+						} else {
+							retransmissions.increment();
+							retransmitted[slot] = true;
+						}
+						// send packet and write the log file
+						sender.sendSegment(nextSequence);
+
+						nextSequence++;
 					}
-					totalBytesSent += datagram.length;
 
-					// Write the log file
-					sender.writeSentMessage(datagram, writer);
+					// One timer for the oldest unacked segment, restarted
+					// whenever the base moves
+					if (timerBase != sendBase) {
+						timerBase = sendBase;
+						timer.start(0, sendBase, timeout);
+					}
 
-					nextSequence++;
-				}
+					// Park until an ack moves the window or the timer fires,
+					// unless it already did while awaitPacer let go of the lock.
+					// A window probe needs a timer of its own.
+					if (!timedOut[0] && !fastRetransmit && sender.awaitWindowChange())
+						timerBase = -1;
+
+					// Retransmission if timer expires
+					if (timedOut[0]) {
+						timedOut[0] = false;
+						fastRetransmit = false;
+						congestionController.onTimeout();
+						sender.commitRetransmitBurst(new FlightEvents.RetransmitBurst(),
+							"timeout", sendBase, nextSequence - sendBase);
+						nextSequence = sendBase;
+						timerBase = -1;
+					}
 
-				// Retransmission if timer expires
-				while (sendBase < datagrams.size() && !baseACK) {
-					currTime = System.currentTimeMillis();
-					if (currTime - startTime >= timeout) {
-						retransmissions += nextSequence - sendBase;
+					// Go back at once on duplicate acks instead of waiting for
+					// the timer, the receiver dropped everything after the hole
+					if (fastRetransmit) {
+						fastRetransmit = false;
+						sender.commitRetransmitBurst(new FlightEvents.RetransmitBurst(),
+							"duplicate acks", sendBase, nextSequence - sendBase);
 						nextSequence = sendBase;
-						break;
+						timerBase = -1;
 					}
 				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				windowLock.unlock();
 			}
 		}
 	}
 	
+	/*
+	 * Selective repeat: every segment in the window has its own timer and
+	 * only the segments whose timer expired are sent again.
+	 */
+	public class SRProtocol extends Thread {
+		private TCPsender sender;
+
+		public SRProtocol(TCPsender sender) {
+			this.sender = sender;
+		}
+
+		@Override
+		public void run() {
+			windowLock.lock();
+			try {
+				while (sendBase < segmentCount) {
+					while (nextSequence < sendBase + getEffectiveWindow() && nextSequence < segmentCount) {
+						if (sender.awaitPacer())
+							continue;
+						int slot = nextSequence % windowSize;
+						windowLengths[slot] = generator.generateDatagram(nextSequence,
+							sender.getWindowBuffer(slot));
+						acked[slot] = false;
+						timedOut[slot] = false;
+						retransmitted[slot] = false;
+						sendTimes[slot] = System.nanoTime();
+						sender.sendSegment(nextSequence);
+						timer.start(slot, nextSequence, timeout);
+						nextSequence++;
+					}
+
+					// On duplicate acks resend every hole the SACK scoreboard
+					// shows below the highest SACKed segment, at least the
+					// base, once per recovery
+					if (fastRetransmit) {
+						fastRetransmit = false;
+						if (sendBase >= recoveryPoint) {
+							FlightEvents.RetransmitBurst burst = new FlightEvents.RetransmitBurst();
+							burst.begin();
+							recoveryPoint = nextSequence;
+							int end = Math.max(sendBase + 1, Math.min(highestSacked, nextSequence));
+							int resent = 0;
+							for (int i = sendBase; i < end; i++) {
+								int slot = i % windowSize;
+								if (!acked[slot]) {
+									retransmissions.increment();
+									retransmitted[slot] = true;
+									sender.sendSegment(i);
+									timer.start(slot, i, timeout);
+									resent++;
+								}
+							}
+							sender.commitRetransmitBurst(burst, "duplicate acks", sendBase, resent);
+						}
+					}
+
+					// Only resend the segments whose own timer expired
+					if (pendingTimeouts > 0)
+						congestionController.onTimeout();
+					FlightEvents.RetransmitBurst burst = new FlightEvents.RetransmitBurst();
+					burst.begin();
+					int firstResent = -1;
+					int resent = 0;
+					for (int i = sendBase; i < nextSequence && pendingTimeouts > 0; i++) {
+						int slot = i % windowSize;
+						if (timedOut[slot] && !acked[slot]) {
+							timedOut[slot] = false;
+							pendingTimeouts--;
+							retransmissions.increment();
+							retransmitted[slot] = true;
+							sender.sendSegment(i);
+							timer.start(slot, i, timeout);
+							if (firstResent < 0)
+								firstResent = i;
+							resent++;
+						}
+					}
+					pendingTimeouts = 0;
+					sender.commitRetransmitBurst(burst, "timeout", firstResent, resent);
+
+					// Park until an ack moves the window or a timer fires
+					sender.awaitWindowChange();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				windowLock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * Called on the timer thread when the timer of a segment expires.
+	 */
+	private void onTimeout(int index) {
+		windowLock.lock();
+		try {
+			if (index < sendBase || index >= nextSequence)
+				return;
+			int slot = selectiveRepeat ? index % windowSize : 0;
+			if (selectiveRepeat && acked[slot])
+				return;
+			timedOut[slot] = true;
+			// GBN has one timer, its flag is all the sending thread checks
+			if (selectiveRepeat)
+				pendingTimeouts++;
+			timeouts.increment();
+			windowChanged.signal();
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/*
+	 * Segments sent and not yet acknowledged. After going back, acks for
+	 * segments sent before may pass nextSequence.
+	 */
+	private int getInFlight() {
+		return Math.max(0, nextSequence - sendBase);
+	}
+
+	/*
+	 * Record the retransmission of the given number of segments from the
+	 * one at index first on, nothing when there were none.
+	 */
+	private void commitRetransmitBurst(FlightEvents.RetransmitBurst event, String cause,
+			int first, int segments) {
+		if (segments <= 0 || !event.shouldCommit())
+			return;
+		event.cause = cause;
+		event.seq = generator.getSequenceNumber(first);
+		event.segments = segments;
+		event.window = getEffectiveWindow();
+		event.inFlight = getInFlight();
+		event.commit();
+	}
+
+	/*
+	 * With pacing on, wait until the pacer lets the next datagram go.
+	 * The window lock is released while waiting so acks are handled in
+	 * the meantime, the caller checks the window again when it waited.
+	 * Retransmissions of holes are not held back, they only use up
+	 * tokens, which delays the next new segment.
+	 */
+	private boolean awaitPacer() {
+		if (pacer == null)
+			return false;
+		long delay = pacer.getDelay(generator.getMaxDatagramSize());
+		if (delay == 0)
+			return false;
+		windowLock.unlock();
+		try {
+			Pacer.pause(delay);
+		} finally {
+			windowLock.lock();
+		}
+		return true;
+	}
+
+	/*
+	 * Automatic pacing sends the effective window once per smoothed RTT,
+	 * measured in ns since on a LAN the RTT is well below a millisecond.
+	 */
+	private void updatePacingRate() {
+		if (pacer == null || pacingRate != AUTO_PACING || pacingRTT == 0)
+			return;
+		double bytesPerRTT = (double) getEffectiveWindow() * generator.getMaxDatagramSize();
+		pacer.setRate((long) (PACING_GAIN * bytesPerRTT * 1000000000L
+			/ Math.max(MIN_PACING_RTT, pacingRTT)));
+	}
+
+	/*
+	 * Number of segments that may be in flight, the congestion window
+	 * capped by the window size given on the command line and by the
+	 * receive window the receiver advertises.
+	 */
+	private int getEffectiveWindow() {
+		int window = Math.min(windowSize, congestionController.getWindow());
+		if (receiveWindow == 0)
+			return windowProbe ? 1 : 0;
+		return receiveWindow > 0 ? Math.min(window, receiveWindow) : window;
+	}
+
+	/*
+	 * Take the receive window from every ack, the protocol thread is woken
+	 * when it opens further even if the ack does not move the window.
+	 */
+	private void updateReceiveWindow(AckFrame ack) {
+		int previous = getEffectiveWindow();
+		receiveWindow = ack.getWindow() & 0xffff;
+		windowProbe = false;
+		if (getEffectiveWindow() > previous)
+			windowChanged.signal();
+	}
+
+	/*
+	 * Park the protocol thread until an ack or a timer wakes it. When the
+	 * receiver closed its window and nothing is in flight no ack would
+	 * come, so after a timeout the next segment is let out as a window
+	 * probe, whose ack carries the window again, like the persist timer
+	 * of TCP. Returns true when a probe is due.
+	 */
+	private boolean awaitWindowChange() throws InterruptedException {
+		if (receiveWindow != 0 || getInFlight() > 0 || nextSequence >= segmentCount) {
+			windowChanged.await();
+			return false;
+		}
+		if (windowChanged.await(timeout, TimeUnit.MILLISECONDS)
+				|| receiveWindow != 0 || getInFlight() > 0)
+			return false;
+		windowProbe = true;
+		return true;
+	}
+
 	private static void runSender(String[] args) {
 		TCPsender sender = new TCPsender();
+		TCPsender[] stripes = new TCPsender[] { sender };
 		writer = new LogWriter();
+		long startTime = System.nanoTime();
 		try {
 			sender.setUp(args);
-			setUpCounters();
 
-			// Instantiate the datagram generator
-			System.out.println("Start generating datagrams...");
-			DatagramGenerator datagramGenerator = new DatagramGenerator();
+			System.out.println("Start streaming datagrams...");
 			// Setup the log writer
+			writer.setAsync(sender.getLogMode().equals("async"));
+			writer.setBinary(sender.getLogMode().equals("binary"));
+			writer.setFlushInterval(sender.getLogFlushInterval());
 			writer.setUp(sender.getLogFileName());
-			// Generate all the datagrams
-			datagrams = datagramGenerator.generateDatagram(sender.getSendPort(), sender.getReceiverPort(),
-				sender.getSequenceRange(), sender.getSendFileName());
-
-			// Start the sending thread
-			GBNProtocol sendingThread = new GBNProtocol(sender);
-			sendingThread.start();
-
-			Socket listeningSocket = sender.getAckSocket().accept();
-			BufferedReader reader = sender.createSocketInput(listeningSocket);
-			String response = "";
-			while (sendBase < datagrams.size()) {
-				System.out.println("Waiting for response from receiver...");
-				response = reader.readLine().trim();
-				System.out.println("Response: " + response);
-				if (responseHasCorrectAck(response, sendBase)) {
-					sendBase++;
-					baseACK = true;
-					sender.writeReceivedMessage(listeningSocket, response, writer);
-					sender.calculateTimeout(datagramRecord.get(sendBase-1), devRTT);
-				}
-			}
-			listeningSocket.close();
-			sender.closeAckSocket();
 
+			startTime = System.nanoTime();
+			stripes = sender.createStripes();
+			setUpMetrics(stripes, sender.getMetricsPort());
+			if (stripes.length == 1)
+				sender.transfer();
+			else runStripes(stripes);
 		} catch (UnknownHostException e) {
             e.printStackTrace();
         } catch (IOException e) {
         	e.printStackTrace();
         }
-        printStatistics();
-        sender.cleanUpIO(writer, sender);
-        System.exit(1);
+        boolean completed = printStatistics(stripes, System.nanoTime() - startTime);
+        cleanUpIO(writer, stripes);
+        System.exit(completed ? 0 : 1);
 	}
 
-	private void calculateTimeout(long firstSendTime, long devRTT) {
-        long endTime = System.currentTimeMillis();
-        long sampleRTT = endTime - firstSendTime;
-        estimatedRTT = new Double((1 - ALPHA) * estimatedRTT 
-        	+ ALPHA * sampleRTT).longValue();
+	/*
+	 * Gauges over all the stripes, exported over JMX and, with -metrics,
+	 * over HTTP. Failing to export them does not stop the transfer.
+	 */
+	private static void setUpMetrics(final TCPsender[] stripes, int port) {
+		metrics.gauge("window", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				long window = 0;
+				for (TCPsender stripe : stripes)
+					window += stripe.getEffectiveWindow();
+				return window;
+			}
+		});
+		metrics.gauge("in_flight", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				long inFlight = 0;
+				for (TCPsender stripe : stripes)
+					inFlight += stripe.getInFlight();
+				return inFlight;
+			}
+		});
+		metrics.gauge("rto_ms", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				long rto = 0;
+				for (TCPsender stripe : stripes)
+					rto = Math.max(rto, stripe.timeout);
+				return rto;
+			}
+		});
+		try {
+			metrics.register("TCPsender:type=Metrics");
+			if (port > 0)
+				metrics.serve(port);
+		} catch (JMException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-        devRTT = new Double((1 - BETA) * devRTT + BETA
-                * Math.abs(sampleRTT - estimatedRTT)).longValue();
-        
-        timeout = new Double(estimatedRTT + 4 * devRTT).longValue();
-    }
+	/*
+	 * Split the file into byte ranges of whole segments, one per stripe.
+	 * Every stripe is a pipeline of its own with its own socket, ack port
+	 * (the given one plus its number), window, timers and threads, and
+	 * opens its own connection to the receiver, which writes each range at
+	 * its offset into the same file. Without striping this sender is the
+	 * only pipeline and sends the whole file.
+	 */
+	private TCPsender[] createStripes() throws IOException {
+		long fileSize = new File(this.getSendFileName()).length();
+		int mss = this.getMaxSegmentSize();
+		long segments = Math.max(1, (fileSize + mss - 1) / mss);
+		int count = (int) Math.min(this.stripeCount, segments);
+		// A fixed pacing rate is for the whole transfer
+		if (this.getPacingRate() > 0)
+			this.setPacingRate(Math.max(1, this.getPacingRate() / count));
+		// The segments are spread evenly, so every stripe gets at least one
+		// and none starts past the end of the file
+		TCPsender[] stripes = new TCPsender[count];
+		for (int i = 0; i < count; i++) {
+			long first = segments * i / count;
+			long end = segments * (i + 1) / count;
+			stripes[i] = i == 0 ? this : this.copyForStripe(i);
+			stripes[i].setUpGenerator(first * mss, (end - first) * mss);
+		}
+		return stripes;
+	}
 
-	private BufferedReader createSocketInput(Socket socket) throws IOException {
-        return new BufferedReader(new InputStreamReader(socket.getInputStream()));
+	private TCPsender copyForStripe(int stripe) throws IOException {
+		TCPsender copy = new TCPsender();
+		copy.setAckPort(this.getAckPort() + stripe);
+		copy.setReceiverPort(this.getReceiverPort());
+		copy.setReceiverAddress(this.getReceiverAddress());
+		copy.setSendFileName(this.getSendFileName());
+		copy.setWindowSize(this.getWindowSize());
+		copy.setSelectiveRepeat(this.isSelectiveRepeat());
+		copy.setCongestionControl(this.getCongestionControl());
+		copy.setChecksumAlgorithm(this.getChecksumAlgorithm());
+		copy.setRemoteFilename(this.getRemoteFilename());
+		copy.setPacingRate(this.getPacingRate());
+		copy.setPacingBurst(this.getPacingBurst());
+		copy.setZeroCopy(this.isZeroCopy());
+		copy.setMaxSegmentSize(this.getMaxSegmentSize());
+		copy.setUpCongestionController();
+		copy.setSendSocket();
+		copy.setAckSocket(copy.getAckPort());
+		copy.setTimeOut(INITIAL_RTO);
+		return copy;
+	}
+
+	/*
+	 * Open the range of the file this pipeline sends, datagrams are
+	 * generated from it as the window moves.
+	 */
+	private void setUpGenerator(long rangeStart, long rangeLength) throws IOException {
+		generator = new DatagramGenerator();
+		generator.setChecksumAlgorithm(this.getChecksumAlgorithm());
+		generator.setRange(rangeStart, rangeLength);
+		generator.setZeroCopy(this.isZeroCopy());
+		generator.setMaxSegmentSize(this.getMaxSegmentSize());
+		generator.setUp(this.getSendPort(), this.getReceiverPort(),
+			this.getWindowSize(), this.getSendFileName());
+	}
+
+	/*
+	 * Until automatic pacing has an RTT the first window goes unpaced.
+	 */
+	private void setUpPacer() {
+		if (this.getPacingRate() == 0)
+			return;
+		long rate = this.getPacingRate() == AUTO_PACING ? Long.MAX_VALUE : this.getPacingRate();
+		pacer = new Pacer(rate, (long) this.getPacingBurst() * generator.getMaxDatagramSize());
+		this.updatePacingRate();
+	}
+
+	/*
+	 * Run every stripe on its own thread and wait for all of them.
+	 */
+	private static void runStripes(TCPsender[] stripes) {
+		Thread[] threads = new Thread[stripes.length];
+		for (int i = 0; i < stripes.length; i++) {
+			final TCPsender stripe = stripes[i];
+			threads[i] = new Thread("stripe-" + i) {
+				@Override
+				public void run() {
+					try {
+						stripe.transfer();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Send the range of this pipeline and read its acks until every
+	 * segment of it is acknowledged.
+	 */
+	private void transfer() throws IOException {
+		segmentCount = generator.getSegmentCount();
+		this.setUpWindow(generator.getBufferSize());
+
+		// With -connect the handshake opens the ack connection
+		AckFrame ack = new AckFrame();
+		SocketChannel listeningSocket = null;
+		if (this.getRemoteFilename() != null)
+			listeningSocket = this.connect(ack);
+		this.setUpPacer();
+
+		// Start the sending thread
+		Thread sendingThread;
+		if (selectiveRepeat)
+			sendingThread = new SRProtocol(this);
+		else sendingThread = new GBNProtocol(this);
+		sendingThread.start();
+
+		if (listeningSocket == null)
+			listeningSocket = this.getAckSocket().accept();
+		while (sendBase < segmentCount) {
+			ack.read(listeningSocket);
+			acksReceived.increment();
+			FlightEvents.AckReceived event = new FlightEvents.AckReceived();
+			event.begin();
+			if (selectiveRepeat)
+				this.handleSelectiveAck(listeningSocket.socket(), ack);
+			else this.handleCumulativeAck(listeningSocket.socket(), ack);
+			if (event.shouldCommit()) {
+				event.seq = ack.getSequenceNumber();
+				event.ackNumber = ack.getAckNumber();
+				event.receiveWindow = receiveWindow;
+				event.window = getEffectiveWindow();
+				event.inFlight = getInFlight();
+				event.rtt = rttSample;
+				event.commit();
+			}
+		}
+		listeningSocket.close();
+		this.closeAckSocket();
+		this.completed = true;
+	}
+
+	/*
+	 * Open the connection with a SYN datagram that tells the receiver the
+	 * ack port, the mode, and the name and length of the file. The SYN is
+	 * sent again, with a doubling timeout, until the receiver opens the ack
+	 * connection, whose first frame is the SYN-ACK. As in TCP the initial
+	 * sequence number is random and the SYN takes one sequence number, its
+	 * round trip is the first RTT sample.
+	 */
+	private SocketChannel connect(AckFrame ack) throws IOException {
+		int synSeqNum = ThreadLocalRandom.current().nextInt();
+		generator.setInitialSequenceNumber(SequenceNumber.add(synSeqNum, 1));
+		ConnectionRequest request = new ConnectionRequest();
+		request.setAckPort(this.getAckPort());
+		request.setSelectiveRepeat(selectiveRepeat);
+		request.setFileLength(generator.getFileSize());
+		request.setOffset(generator.getRangeStart());
+		request.setSegmentSize(generator.getMaxSegmentSize());
+		request.setFilename(this.getRemoteFilename());
+		byte[] syn = new byte[generator.getMaxDatagramSize()];
+		int length = generator.generateSynDatagram(request, syn);
+		DatagramPacket packet = new DatagramPacket(syn, length,
+			this.getReceiverAddress(), this.getReceiverPort());
+
+		ServerSocketChannel server = this.getAckSocket();
+		Selector selector = Selector.open();
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		SocketChannel channel = null;
+		long wait = SYN_TIMEOUT;
+		long synNanos = 0;
+		for (int i = 0; i < SYN_RETRIES && channel == null; i++) {
+			synNanos = System.nanoTime();
+			this.sendPacket(packet);
+			this.writeSentMessage(syn, writer);
+			if (selector.select(wait) > 0)
+				channel = server.accept();
+			wait *= 2;
+		}
+		selector.close();
+		server.configureBlocking(true);
+		if (channel == null)
+			throw new IOException("No answer to the SYN from the receiver");
+		channel.configureBlocking(true);
+
+		ack.read(channel);
+		if (ack.getFlag() != SYN_ACK_FLAG
+				|| ack.getAckNumber() != generator.getInitialSequenceNumber())
+			throw new IOException("Unexpected answer to the SYN from the receiver");
+		// The first window is already bounded by what the receiver can take
+		receiveWindow = ack.getWindow() & 0xffff;
+		this.calculateTimeout(synNanos);
+		this.writeReceivedMessage(channel.socket(), ack, writer);
+		return channel;
+	}
+
+	/*
+	 * RTO as in RFC 6298. The smoothed RTT and its deviation are kept in
+	 * microseconds, in whole milliseconds a LAN or loopback RTT rounds to
+	 * 0. The timeout is in milliseconds, at least MIN_RTO so the timer
+	 * does not fire while the ack of a segment is still on its way.
+	 * Only segments sent once give samples (Karn's rule), the caller
+	 * checks that.
+	 */
+	private void calculateTimeout(long firstSendTime) {
+        long sampleNanos = System.nanoTime() - firstSendTime;
+        rttSample = sampleNanos / 1000;
+        rttHistogram.record(rttSample);
+        pacingRTT = pacingRTT == 0 ? sampleNanos
+        	: (long) ((1 - ALPHA) * pacingRTT + ALPHA * sampleNanos);
+        if (estimatedRTT == 0) {
+        	estimatedRTT = rttSample;
+        	devRTT = rttSample / 2;
+        } else {
+        	devRTT = (long) ((1 - BETA) * devRTT + BETA * Math.abs(rttSample - estimatedRTT));
+        	estimatedRTT = (long) ((1 - ALPHA) * estimatedRTT + ALPHA * rttSample);
+        }
+
+        long rto = (estimatedRTT + 4 * devRTT + 999) / 1000;
+        timeout = Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+
+        FlightEvents.RtoUpdate event = new FlightEvents.RtoUpdate();
+        if (event.shouldCommit()) {
+            event.rtt = rttSample;
+            event.smoothedRtt = estimatedRTT;
+            event.rttDeviation = devRTT;
+            event.rto = timeout;
+            event.commit();
+        }
     }
 
-    private static boolean responseHasCorrectAck(String response, int sendBase) {
-        return response.contains("ACK " + (sendBase % sequenceRange)) ? true : false;
+	/*
+	 * Go-Back-N: a cumulative ack may cover many segments at once.
+	 */
+	private void handleCumulativeAck(Socket socket, AckFrame ack) {
+		windowLock.lock();
+		try {
+			this.updateReceiveWindow(ack);
+			if (!ackMovesWindow(ack.getAckNumber(), sendBase)) {
+				this.countDuplicateAck(ack);
+				return;
+			}
+
+			int firstUnacked = generator.getFirstUnackedSegment(sendBase, ack.getAckNumber());
+			// Read the send time before the slot can be reused.
+			long firstSendTime = sendTimes[(firstUnacked - 1) % windowSize];
+			boolean resent = retransmitted[(firstUnacked - 1) % windowSize];
+			int ackedSegments = firstUnacked - sendBase;
+			sendBase = firstUnacked;
+			duplicateAcks = 0;
+			timer.cancel(0);
+			windowChanged.signal();
+			this.writeReceivedMessage(socket, ack, writer);
+			if (!resent)
+				this.calculateTimeout(firstSendTime);
+			congestionController.onAck(ackedSegments, estimatedRTT / 1000);
+			this.updatePacingRate();
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/*
+	 * Mark the segment named by the ACK, then slide the window over the
+	 * cumulative ack and every acknowledged segment at its base.
+	 */
+	private void handleSelectiveAck(Socket socket, AckFrame ack) {
+		windowLock.lock();
+		try {
+			this.updateReceiveWindow(ack);
+			// Acks outside of [sendBase, nextSequence) are for old segments
+			int index = generator.getSegmentIndex(sendBase, ack.getSequenceNumber());
+			boolean newlyAcked = index >= 0 && index < nextSequence && !acked[index % windowSize];
+			int ackedSegments = 0;
+			if (newlyAcked) {
+				acked[index % windowSize] = true;
+				ackedSegments++;
+				timer.cancel(index % windowSize);
+				if (!retransmitted[index % windowSize])
+					this.calculateTimeout(sendTimes[index % windowSize]);
+			}
+
+			ackedSegments += this.markSackedSegments(ack);
+
+			int firstUnacked = Math.min(nextSequence,
+				generator.getFirstUnackedSegment(sendBase, ack.getAckNumber()));
+			boolean windowMoved = false;
+			while (sendBase < nextSequence
+					&& (sendBase < firstUnacked || acked[sendBase % windowSize])) {
+				if (!acked[sendBase % windowSize])
+					ackedSegments++;
+				timer.cancel(sendBase % windowSize);
+				sendBase++;
+				windowMoved = true;
+			}
+
+			if (windowMoved) {
+				duplicateAcks = 0;
+				windowChanged.signal();
+			} else {
+				this.countDuplicateAck(ack);
+			}
+			if (ackedSegments > 0) {
+				congestionController.onAck(ackedSegments, estimatedRTT / 1000);
+				this.updatePacingRate();
+			}
+			if (newlyAcked || windowMoved)
+				this.writeReceivedMessage(socket, ack, writer);
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/*
+	 * Mark every in-flight segment inside the SACK blocks of the ack on
+	 * the scoreboard. Returns the number of newly acked segments.
+	 */
+	private int markSackedSegments(AckFrame ack) {
+		int newlyAcked = 0;
+		for (int block = 0; block < ack.getSackBlockCount(); block++) {
+			int first = generator.getSegmentIndex(sendBase, ack.getSackLeftEdge(block));
+			if (first < 0)
+				continue;
+			int end = Math.min(nextSequence,
+				generator.getFirstUnackedSegment(sendBase, ack.getSackRightEdge(block)));
+			for (int i = first; i < end; i++) {
+				int slot = i % windowSize;
+				if (!acked[slot]) {
+					acked[slot] = true;
+					timer.cancel(slot);
+					newlyAcked++;
+				}
+			}
+			highestSacked = Math.max(highestSacked, end);
+		}
+		return newlyAcked;
+	}
+
+	/*
+	 * An ack for the base of a window with segments in flight that does
+	 * not move it is a duplicate, the segment at the base may be lost.
+	 * The third one triggers a fast retransmit of the base.
+	 */
+	private void countDuplicateAck(AckFrame ack) {
+		if (sendBase < nextSequence
+				&& ack.getAckNumber() == generator.getSequenceNumber(sendBase)) {
+			duplicateAcks++;
+			duplicateAckCount.increment();
+			congestionController.onDuplicateAck(duplicateAcks);
+			if (duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+				fastRetransmit = true;
+				windowChanged.signal();
+			}
+		}
+	}
+
+    private boolean ackMovesWindow(int ackNum, int sendBase) {
+        return SequenceNumber.isAfter(ackNum, generator.getSequenceNumber(sendBase));
     }
 
 	private int extractIntFromHeader(byte[] header, int index) {
-        byte[] temp = new byte[4];
-        System.arraycopy(header, index, temp, 0, INT_BYTE_SIZE);
-        int value = ByteBuffer.wrap(temp).getInt();
-        return value;
+        return (header[index] & 0xff) << 24 | (header[index + 1] & 0xff) << 16
+                | (header[index + 2] & 0xff) << 8 | (header[index + 3] & 0xff);
     }
 
+	/*
+	 * The addresses in the log never change during a transfer, so their
+	 * strings are built once.
+	 */
 	private void writeSentMessage(byte[] segment, LogWriter writer) {
         int seqNumber = this.extractIntFromHeader(segment, SEQ_NUM_INDEX);
         int ackNumber = this.extractIntFromHeader(segment, ACK_NUM_INDEX);
-        String senderAddress = this.getSendSocket().getLocalSocketAddress()
-                .toString();
-        String receiverAddress = this.getReceiverAddress().toString() + ":"
-                + this.getReceiverPort();
-        writer.writeToLog(false, senderAddress, receiverAddress.substring(1),
-                seqNumber, ackNumber, segment[FLAG_INDEX], this.estimatedRTT, "Sent");
+        if (this.sentSource == null) {
+            this.sentSource = this.getSendSocket().getLocalSocketAddress().toString();
+            this.sentDestination = (this.getReceiverAddress().toString() + ":"
+                    + this.getReceiverPort()).substring(1);
+        }
+        writer.writeToLog(false, this.sentSource, this.sentDestination,
+                seqNumber, ackNumber, segment[FLAG_INDEX], this.estimatedRTT / 1000, "Sent");
     }
 
-    private void writeReceivedMessage(Socket socket, String response, LogWriter writer) {
-        String ackSocketSource = socket.getInetAddress().toString().substring(1)
-                + ":" + socket.getPort();
-        String ackSocketDest = this.getAckSocket().getLocalSocketAddress().toString();
-        String seqNum = response.substring(0, response.indexOf("ACK")).trim();
-        int seq = Integer.parseInt(seqNum.substring(seqNum.indexOf("Q") + 1).trim());
-        int ack1 = Integer.parseInt(response.substring(
-                response.indexOf("K") + 1, response.indexOf("F")).trim());
-        Integer flagValue = Integer.parseInt(response.substring(
-                response.indexOf("G") + 1).trim());
-        byte flag = flagValue.byteValue();
-        writer.writeToLog(true, ackSocketSource, ackSocketDest, seq, ack1,
-                flag, estimatedRTT, "Received");
+    private void writeReceivedMessage(Socket socket, AckFrame ack, LogWriter writer) {
+        if (this.ackSource == null) {
+            this.ackSource = socket.getInetAddress().toString().substring(1)
+                    + ":" + socket.getPort();
+            this.ackDestination = this.getAckSocket().socket().getLocalSocketAddress().toString();
+        }
+        writer.writeToLog(true, this.ackSource, this.ackDestination, ack.getSequenceNumber(),
+                ack.getAckNumber(), ack.getFlag(), estimatedRTT / 1000, "Received");
     }
 
     private void closeAckSocket() throws IOException {
         this.getAckSocket().close();
     }
 
-    private static void cleanUpIO(LogWriter writer, TCPsender sender) {
+    private static void cleanUpIO(LogWriter writer, TCPsender[] stripes) {
         writer.close();
-        sender.getSendSocket().close();
+        for (TCPsender sender : stripes) {
+            if (sender.timer != null)
+                sender.timer.shutdown();
+            sender.getSendSocket().close();
+            try {
+                if (sender.generator != null)
+                    sender.generator.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    private static void printStatistics() {
-        System.out.println("Delivery Completed Successfully");
-        System.out.println("Total bytes sent = " + totalBytesSent);
-        System.out.println("Segment sent = " + totalSegmentsSent);
-        System.out.println("Segments retransmitted = " + retransmissions);
+    /*
+     * The transfer time runs from opening the file to the last ack. The
+     * CPU time is that of the whole process, the peak heap the sum of the
+     * highest use of every heap pool, both since the JVM started.
+     * Returns whether every stripe completed, the delivery failed if any
+     * of them gave up.
+     */
+    private static boolean printStatistics(TCPsender[] stripes, long transferNanos) {
+        int failed = 0;
+        for (TCPsender stripe : stripes) {
+            if (!stripe.isCompleted())
+                failed++;
+        }
+        if (failed == 0)
+            System.out.println("Delivery Completed Successfully");
+        else System.out.println("Delivery failed, " + failed + " of " + stripes.length
+            + " stripes did not complete");
+        System.out.println("Total bytes sent = " + bytesSent.sum());
+        System.out.println("Segment sent = " + segmentsSent.sum());
+        System.out.println("Segments retransmitted = " + retransmissions.sum());
+        System.out.println("Transfer time (ms) = " + transferNanos / 1000000);
+        System.out.println("CPU time (ms) = " + Metrics.getProcessCpuMillis());
+        System.out.println("Peak heap (bytes) = " + Metrics.getPeakHeap());
+        return failed == 0;
     }
 	
 	public TCPsender() {
@@ -227,17 +968,43 @@ public class TCPsender {
 		this.sendFileName = null;
 		this.logFileName = null;
 		this.windowSize = 1;
-		this.sequenceRange = 2;
 		this.sendSocket = null;
+		this.sendChannel = null;
+		this.zeroCopy = false;
+		this.completed = false;
+		this.maxSegmentSize = DatagramGenerator.DEFAULT_MSS;
 		this.ackSocket = null;
 		this.receiverAddress = null;
+		this.sentSource = null;
+		this.sentDestination = null;
+		this.ackSource = null;
+		this.ackDestination = null;
+		this.logMode = "sync";
+		this.checksumAlgorithm = SegmentChecksum.CRC32C;
+		this.remoteFilename = null;
+		this.stripeCount = 1;
+		this.pacer = null;
+		this.pacingRate = 0;
+		this.pacingBurst = 4;
+		this.pacingRTT = 0;
+		this.logFlushInterval = 100;
 		this.timeout = 0;
 		this.estimatedRTT = 0;
 		this.devRTT = 0;
+		this.rttSample = 0;
 
 		this.sendBase = 0;
 		this.nextSequence = 0;
-		this.baseACK = false;
+		this.nextGenerated = 0;
+		this.selectiveRepeat = false;
+		this.congestionControl = "none";
+		this.duplicateAcks = 0;
+		this.fastRetransmit = false;
+		this.highestSacked = 0;
+		this.recoveryPoint = 0;
+		this.receiveWindow = UNKNOWN_WINDOW;
+		this.windowProbe = false;
+		this.metricsPort = 0;
 	}
 
 	private void setUp(String[] args) throws UnknownHostException, IOException {
@@ -245,26 +1012,173 @@ public class TCPsender {
 		this.setReceiverPort(Integer.parseInt(args[2]));
 		this.setSendFileName(args[0]);
 		this.setLogFileName(args[4]);
-		if (args.length == 6) this.setWindowSize(Integer.parseInt(args[5]));
-		this.sequenceRange = this.windowSize * 2;
+		int next = 5;
+		if (args.length > next && !args[next].startsWith("-")) {
+			int windowSize = Integer.parseInt(args[next++]);
+			if (windowSize < 1 || windowSize > DatagramGenerator.MAX_WINDOW_SIZE)
+				printInstructions();
+			this.setWindowSize(windowSize);
+		}
+		this.parseOptions(args, next);
+		// Each stripe is a connection of its own, which needs the handshake
+		if (this.getStripeCount() > 1 && this.getRemoteFilename() == null)
+			printInstructions();
+		this.setUpCongestionController();
+		this.setReceiverAddress(InetAddress.getByName(args[1]));
+		if (this.getMaxSegmentSize() == AUTO_MSS)
+			this.setMaxSegmentSize(this.probeSegmentSize());
+		// Without zero copy every segment of the window is held on the heap
+		long windowBytes = (long) this.getWindowSize()
+			* (this.getMaxSegmentSize() + DatagramExtractor.HEADER_SIZE);
+		if (!this.isZeroCopy() && windowBytes > MAX_WINDOW_BYTES) {
+			System.out.println("A window of " + this.getWindowSize() + " segments of "
+				+ this.getMaxSegmentSize() + " bytes takes more than "
+				+ (MAX_WINDOW_BYTES >> 20) + " MB");
+			printInstructions();
+		}
 		this.setSendSocket();
 		this.setAckSocket(this.getAckPort());
-		this.setReceiverAddress(InetAddress.getByName(args[1]));
-		this.setTimeOut(1000);
-		this.estimatedRTT = 1000;
+		this.setTimeOut(INITIAL_RTO);
+
+	}
+
+	/*
+	 * Largest segment whose datagram fits in the MTU of the interface the
+	 * receiver is reached through, so IP does not fragment it on the way
+	 * out. Java cannot set the don't fragment bit to probe the MTU of the
+	 * whole path, on a LAN or loopback the two are the same.
+	 */
+	private int probeSegmentSize() throws IOException {
+		DatagramSocket probe = new DatagramSocket();
+		try {
+			probe.connect(this.getReceiverAddress(), this.getReceiverPort());
+			NetworkInterface networkInterface =
+				NetworkInterface.getByInetAddress(probe.getLocalAddress());
+			if (networkInterface == null || networkInterface.getMTU() <= 0)
+				return DatagramGenerator.DEFAULT_MSS;
+			int ipHeaderSize = this.getReceiverAddress() instanceof Inet6Address ? 40 : 20;
+			int mss = networkInterface.getMTU() - ipHeaderSize - UDP_HEADER_SIZE
+				- DatagramExtractor.HEADER_SIZE;
+			return Math.max(DatagramGenerator.DEFAULT_MSS, Math.min(DatagramGenerator.MAX_MSS, mss));
+		} finally {
+			probe.close();
+		}
+	}
+
+	private void parseOptions(String[] args, int start) {
+		for (int i = start; i < args.length; i += 2) {
+			if (i + 1 >= args.length)
+				printInstructions();
+			if (args[i].equals("-mode") && args[i + 1].equals("sr"))
+				this.setSelectiveRepeat(true);
+			else if (args[i].equals("-mode") && args[i + 1].equals("gbn"))
+				this.setSelectiveRepeat(false);
+			else if (args[i].equals("-cc") && (args[i + 1].equals("none")
+					|| args[i + 1].equals("reno") || args[i + 1].equals("cubic")))
+				this.setCongestionControl(args[i + 1]);
+			else if (args[i].equals("-log") && (args[i + 1].equals("sync")
+					|| args[i + 1].equals("async") || args[i + 1].equals("binary")))
+				this.setLogMode(args[i + 1]);
+			else if (args[i].equals("-logflush"))
+				this.setLogFlushInterval(Long.parseLong(args[i + 1]));
+			else if (args[i].equals("-checksum") && args[i + 1].equals("inet"))
+				this.setChecksumAlgorithm(SegmentChecksum.INTERNET);
+			else if (args[i].equals("-checksum") && args[i + 1].equals("crc32c"))
+				this.setChecksumAlgorithm(SegmentChecksum.CRC32C);
+			else if (args[i].equals("-connect"))
+				this.setRemoteFilename(args[i + 1]);
+			else if (args[i].equals("-stripes") && Integer.parseInt(args[i + 1]) > 0)
+				this.setStripeCount(Integer.parseInt(args[i + 1]));
+			else if (args[i].equals("-pace") && args[i + 1].equals("auto"))
+				this.setPacingRate(AUTO_PACING);
+			else if (args[i].equals("-pace") && Long.parseLong(args[i + 1]) > 0)
+				this.setPacingRate(Long.parseLong(args[i + 1]));
+			else if (args[i].equals("-zerocopy") && (args[i + 1].equals("on")
+					|| args[i + 1].equals("off")))
+				this.setZeroCopy(args[i + 1].equals("on"));
+			else if (args[i].equals("-mss") && args[i + 1].equals("auto"))
+				this.setMaxSegmentSize(AUTO_MSS);
+			else if (args[i].equals("-mss") && Integer.parseInt(args[i + 1]) > 0
+					&& Integer.parseInt(args[i + 1]) <= DatagramGenerator.MAX_MSS)
+				this.setMaxSegmentSize(Integer.parseInt(args[i + 1]));
+			else if (args[i].equals("-paceburst") && Integer.parseInt(args[i + 1]) > 0)
+				this.setPacingBurst(Integer.parseInt(args[i + 1]));
+			else if (args[i].equals("-metrics") && Integer.parseInt(args[i + 1]) > 0)
+				this.setMetricsPort(Integer.parseInt(args[i + 1]));
+			else printInstructions();
+		}
+	}
+
+	private void setUpCongestionController() {
+		if (congestionControl.equals("reno"))
+			congestionController = new RenoController(windowSize);
+		else if (congestionControl.equals("cubic"))
+			congestionController = new CubicController(windowSize);
+		else congestionController = new FixedWindowController(windowSize);
+	}
 
-		datagramRecord = new ArrayList<Long>();
+	/*
+	 * The datagram buffers are allocated as their slots are first used, a
+	 * small file or a congestion window below the maximum never needs
+	 * all of them.
+	 */
+	private void setUpWindow(int bufferSize) {
+		window = new byte[windowSize][];
+		windowBufferSize = bufferSize;
+		windowLengths = new int[windowSize];
+		sendTimes = new long[windowSize];
+		retransmitted = new boolean[windowSize];
+		acked = new boolean[windowSize];
+		timedOut = new boolean[windowSize];
+		timer = new RetransmissionTimer(windowSize, new RetransmissionTimer.Listener() {
+			@Override
+			public void onTimeout(int index) {
+				TCPsender.this.onTimeout(index);
+			}
+		});
 	}
 
-	private static void setUpCounters() {
-		retransmissions = 0;
-        totalSegmentsSent = 0;
-        totalBytesSent = 0;
+	private byte[] getWindowBuffer(int slot) {
+		if (window[slot] == null)
+			window[slot] = new byte[windowBufferSize];
+		return window[slot];
+	}
+
+	private void sendSegment(int index) {
+		int slot = index % windowSize;
+		byte[] datagram = window[slot];
+		int length = windowLengths[slot];
+		FlightEvents.SegmentSent event = new FlightEvents.SegmentSent();
+		event.begin();
+		try {
+			if (generator.isZeroCopy()) {
+				generator.writeDatagram(index, datagram, sendChannel);
+				segmentsSent.increment();
+			} else {
+				this.sendPacket(new DatagramPacket(datagram, length,
+					this.getReceiverAddress(), this.getReceiverPort()));
+			}
+		} catch (PortUnreachableException e) {
+			// The receiver is not listening (yet), the datagram is lost
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		bytesSent.add(length);
+		if (event.shouldCommit()) {
+			event.seq = generator.getSequenceNumber(index);
+			event.length = length;
+			event.window = getEffectiveWindow();
+			event.inFlight = Math.max(nextSequence, index + 1) - sendBase;
+			event.commit();
+		}
+		if (pacer != null)
+			pacer.consume(length);
+		this.writeSentMessage(datagram, writer);
 	}
 
 	private void sendPacket(DatagramPacket packet) throws IOException {
         this.getSendSocket().send(packet);
-        totalSegmentsSent++;
+        segmentsSent.increment();
     }
 
 	// Setters
@@ -288,16 +1202,72 @@ public class TCPsender {
 		this.windowSize = windowSize;
 	}
 
-	public void setSequenceRange(int sequenceRange) {
-		this.sequenceRange = sequenceRange;
+	public void setSelectiveRepeat(boolean selectiveRepeat) {
+		this.selectiveRepeat = selectiveRepeat;
+	}
+
+	public void setStripeCount(int stripeCount) {
+		this.stripeCount = stripeCount;
+	}
+
+	public void setMaxSegmentSize(int maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+
+	public void setPacingRate(long pacingRate) {
+		this.pacingRate = pacingRate;
+	}
+
+	public void setPacingBurst(int pacingBurst) {
+		this.pacingBurst = pacingBurst;
+	}
+
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+
+	public void setRemoteFilename(String remoteFilename) {
+		this.remoteFilename = remoteFilename;
+	}
+
+	public void setChecksumAlgorithm(byte checksumAlgorithm) {
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+	public void setLogMode(String logMode) {
+		this.logMode = logMode;
+	}
+
+	public void setLogFlushInterval(long logFlushInterval) {
+		this.logFlushInterval = logFlushInterval;
 	}
 
-	public void setSendSocket() throws SocketException {
-		this.sendSocket = new DatagramSocket();
+	public void setCongestionControl(String congestionControl) {
+		this.congestionControl = congestionControl;
+	}
+
+	/*
+	 * Zero copy sends on a DatagramChannel connected to the receiver,
+	 * the SYN goes through the socket of that channel.
+	 */
+	public void setSendSocket() throws IOException {
+		if (!this.isZeroCopy()) {
+			this.sendSocket = new DatagramSocket();
+			return;
+		}
+		this.sendChannel = DatagramChannel.open();
+		this.sendChannel.connect(new InetSocketAddress(this.getReceiverAddress(),
+			this.getReceiverPort()));
+		this.sendSocket = this.sendChannel.socket();
 	}
 
 	public void setAckSocket(int ackPort) throws IOException {
-		this.ackSocket = new ServerSocket(ackPort);
+		this.ackSocket = ServerSocketChannel.open();
+		this.ackSocket.bind(new InetSocketAddress(ackPort));
 	}
 
 	public void setReceiverAddress(InetAddress receiverAddress) {
@@ -329,15 +1299,63 @@ public class TCPsender {
 		return this.windowSize;
 	}
 
-	public int getSequenceRange() {
-		return this.sequenceRange;
+	public int getStripeCount() {
+		return this.stripeCount;
+	}
+
+	public int getMaxSegmentSize() {
+		return this.maxSegmentSize;
+	}
+
+	public boolean isZeroCopy() {
+		return this.zeroCopy;
+	}
+
+	public boolean isCompleted() {
+		return this.completed;
+	}
+
+	public long getPacingRate() {
+		return this.pacingRate;
+	}
+
+	public int getPacingBurst() {
+		return this.pacingBurst;
+	}
+
+	public int getMetricsPort() {
+		return this.metricsPort;
+	}
+
+	public String getRemoteFilename() {
+		return this.remoteFilename;
+	}
+
+	public byte getChecksumAlgorithm() {
+		return this.checksumAlgorithm;
+	}
+
+	public String getLogMode() {
+		return this.logMode;
+	}
+
+	public long getLogFlushInterval() {
+		return this.logFlushInterval;
+	}
+
+	public boolean isSelectiveRepeat() {
+		return this.selectiveRepeat;
+	}
+
+	public String getCongestionControl() {
+		return this.congestionControl;
 	}
 
 	public DatagramSocket getSendSocket() {
 		return this.sendSocket;
 	}
 
-	public ServerSocket getAckSocket(){
+	public ServerSocketChannel getAckSocket(){
 		return this.ackSocket;
 	}
 
@@ -0,0 +1,186 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/*
+ * Microbenchmarks of the byte level hot paths: building datagrams,
+ * reading header fields, checksums and cutting a whole file into
+ * datagrams. For every case it reports the time per operation and the
+ * bytes allocated per operation, the second from the allocation counter
+ * the JVM keeps for every thread.
+ *
+ * Each case is first run for WARMUP_TIME so the JIT compiles it, then
+ * measured in ROUNDS rounds of ROUND_TIME, the best and the mean round
+ * are reported. The result of every operation goes into a sink that is
+ * printed at the end, so the JIT cannot drop the work.
+ *
+ * Build and run with "make bench", or:
+ * java -cp .:bench CodecBenchmark [file_size_mb]
+ */
+public class CodecBenchmark {
+    private final static long WARMUP_TIME = 2000;
+    private final static long ROUND_TIME = 1000;
+    private final static int ROUNDS = 5;
+    private static long sink;
+
+    /*
+     * One benchmark case, run performs the operation count times and
+     * returns something that depends on the results.
+     */
+    private interface Case {
+        long run(int count) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int fileSizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        File file = File.createTempFile("codec", ".bin");
+        file.deleteOnExit();
+        byte[] content = new byte[fileSizeMb * 1024 * 1024];
+        new java.util.Random(1).nextBytes(content);
+        Files.write(file.toPath(), content);
+
+        System.out.printf("%-34s %12s %12s %12s%n", "case", "best ns/op", "mean ns/op", "B/op");
+        final DatagramGenerator generator = setUpGenerator(file, false, SegmentChecksum.CRC32C);
+        final DatagramGenerator zeroCopy = setUpGenerator(file, true, SegmentChecksum.CRC32C);
+        final DatagramGenerator internet = setUpGenerator(file, false, SegmentChecksum.INTERNET);
+        final byte[] datagram = new byte[generator.getMaxDatagramSize()];
+        final byte[] header = new byte[zeroCopy.getBufferSize()];
+        final int segments = generator.getSegmentCount();
+
+        measure("encode datagram crc32c", new Case() {
+            public long run(int count) throws IOException {
+                long result = 0;
+                for (int i = 0; i < count; i++)
+                    result += generator.generateDatagram(i % segments, datagram);
+                return result;
+            }
+        });
+        measure("encode datagram inet", new Case() {
+            public long run(int count) throws IOException {
+                long result = 0;
+                for (int i = 0; i < count; i++)
+                    result += internet.generateDatagram(i % segments, datagram);
+                return result;
+            }
+        });
+        measure("encode header zero copy crc32c", new Case() {
+            public long run(int count) throws IOException {
+                long result = 0;
+                for (int i = 0; i < count; i++)
+                    result += zeroCopy.generateDatagram(i % segments, header);
+                return result;
+            }
+        });
+
+        generator.generateDatagram(0, datagram);
+        final ByteBuffer received = ByteBuffer.allocateDirect(datagram.length);
+        received.put(datagram).flip();
+        final DatagramExtractor extractor = new DatagramExtractor();
+        measure("decode header", new Case() {
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    result += extractor.retrieveOriginalSize(received);
+                    result += extractor.extractSequenceNumberFromHeader(received);
+                    result += extractor.extractAckNumberFromHeader(received);
+                    result += extractor.extractFlagsFromHeader(received);
+                    result += extractor.extractWindowSizeFromHeader(received);
+                    result += extractor.getDataLength(received);
+                }
+                return result;
+            }
+        });
+        measure("verify checksum crc32c", new Case() {
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++)
+                    result += extractor.checkCheckSum(received) ? 1 : 0;
+                return result;
+            }
+        });
+
+        final SegmentChecksum checksum = new SegmentChecksum();
+        final byte[] zeroed = datagram.clone();
+        zeroed[20] = zeroed[21] = zeroed[22] = zeroed[23] = 0;
+        measure("checksum inet " + zeroed.length + " bytes", new Case() {
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++)
+                    result += checksum.calculate(SegmentChecksum.INTERNET, zeroed, zeroed.length);
+                return result;
+            }
+        });
+        measure("checksum crc32c " + zeroed.length + " bytes", new Case() {
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++)
+                    result += checksum.calculate(SegmentChecksum.CRC32C, zeroed, zeroed.length);
+                return result;
+            }
+        });
+
+        measure("segment " + fileSizeMb + " MB file", new Case() {
+            public long run(int count) throws IOException {
+                long result = 0;
+                for (int n = 0; n < count; n++) {
+                    for (int i = 0; i < segments; i++)
+                        result += generator.generateDatagram(i, datagram);
+                }
+                return result;
+            }
+        });
+
+        generator.close();
+        zeroCopy.close();
+        internet.close();
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static DatagramGenerator setUpGenerator(File file, boolean zeroCopy,
+            byte checksumAlgorithm) throws IOException {
+        DatagramGenerator generator = new DatagramGenerator();
+        generator.setZeroCopy(zeroCopy);
+        generator.setChecksumAlgorithm(checksumAlgorithm);
+        generator.setUp(0, 0, 1, file.getPath());
+        return generator;
+    }
+
+    /*
+     * Warm the case up, find how many operations fill a round, then
+     * measure the rounds.
+     */
+    private static void measure(String name, Case benchmark) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        int count = 1;
+        long start = System.nanoTime();
+        long end = start + WARMUP_TIME * 1000000L;
+        long elapsed = 0;
+        while (System.nanoTime() < end) {
+            long roundStart = System.nanoTime();
+            sink += benchmark.run(count);
+            elapsed = System.nanoTime() - roundStart;
+            if (elapsed < ROUND_TIME * 100000L)
+                count *= 2;
+        }
+        count = (int) Math.max(1, count * (ROUND_TIME * 1000000L) / Math.max(1, elapsed));
+
+        double best = Double.MAX_VALUE;
+        double total = 0;
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytesBefore = threads.getThreadAllocatedBytes(thread);
+            long roundStart = System.nanoTime();
+            sink += benchmark.run(count);
+            double nanosPerOp = (double) (System.nanoTime() - roundStart) / count;
+            allocated += threads.getThreadAllocatedBytes(thread) - bytesBefore;
+            best = Math.min(best, nanosPerOp);
+            total += nanosPerOp;
+        }
+        System.out.printf("%-34s %12.1f %12.1f %12.1f%n", name, best, total / ROUNDS,
+                (double) allocated / ((long) count * ROUNDS));
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * End to end throughput of the sender and receiver over loopback.
+ *
+ * Every combination of file size, window size, segment size, loss rate
+ * and mode is run the given number of times. Each run starts a receiver
+ * and a sender in processes of their own, with an ImpairmentProxy between
+ * them that drops datagrams when the loss rate is above 0. The sender
+ * and the receiver print their statistics when they are done, the CPU
+ * time and peak heap of both are read from their output and the received
+ * file is compared with the one sent.
+ *
+ * The results go to stdout as they come and at the end to the output file,
+ * as JSON if its name ends in .json and as CSV otherwise.
+ *
+ * Build and run with "make loopback", or:
+ * java -cp .:bench LoopbackBenchmark [-sizes <bytes>,...] [-windows <n>,...]
+ * [-mss <bytes>|auto,...] [-loss <p>,...] [-modes gbn|sr,...] [-repeat <n>]
+ * [-log sync|async|binary] [-senderargs "<args>"] [-receiverargs "<args>"]
+ * [-seed <n>] [-timeout <s>] [-port <n>] [-out <filename>]
+ * Sizes take a K or M suffix.
+ */
+public class LoopbackBenchmark {
+    private final static String[] COLUMNS = { "size", "window", "mss", "loss", "mode", "run",
+        "ok", "time_ms", "goodput_mb_s", "segments", "retransmissions", "bytes_sent",
+        "sender_cpu_ms", "sender_peak_heap", "receiver_cpu_ms", "receiver_peak_heap" };
+    private final static long STARTUP_DELAY = 500;
+    private final static long SHUTDOWN_DELAY = 2000;
+    private final static int PORTS_PER_RUN = 3;
+    private String[] sizes = { "1M", "8M" };
+    private String[] windows = { "16", "64" };
+    private String[] segmentSizes = { "552", "8948" };
+    private String[] lossRates = { "0", "0.01" };
+    private String[] modes = { "gbn", "sr" };
+    private int repeat = 1;
+    private String logMode = "async";
+    private String senderArgs = "";
+    private String receiverArgs = "";
+    private long seed = 1;
+    private long timeout = 120;
+    private int port = 30000;
+    private String outputFilename = "loopback.csv";
+    private File workDirectory;
+    private ArrayList<String[]> results = new ArrayList<String[]>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoopbackBenchmark benchmark = new LoopbackBenchmark();
+        if (!benchmark.setUp(args)) {
+            System.out.println("java -cp .:bench LoopbackBenchmark [-sizes <bytes>,...]"
+                + " [-windows <n>,...] [-mss <bytes>|auto,...] [-loss <p>,...]"
+                + " [-modes gbn|sr,...] [-repeat <n>] [-log sync|async|binary]"
+                + " [-senderargs \"<args>\"] [-receiverargs \"<args>\"] [-seed <n>]"
+                + " [-timeout <s>] [-port <n>] [-out <filename>]");
+            System.exit(1);
+        }
+        benchmark.runAll();
+        benchmark.writeResults();
+    }
+
+    private boolean setUp(String[] args) {
+        if (args.length % 2 != 0)
+            return false;
+        for (int i = 0; i < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("-sizes"))
+                this.sizes = value.split(",");
+            else if (args[i].equals("-windows"))
+                this.windows = value.split(",");
+            else if (args[i].equals("-mss"))
+                this.segmentSizes = value.split(",");
+            else if (args[i].equals("-loss"))
+                this.lossRates = value.split(",");
+            else if (args[i].equals("-modes"))
+                this.modes = value.split(",");
+            else if (args[i].equals("-repeat"))
+                this.repeat = Integer.parseInt(value);
+            else if (args[i].equals("-log"))
+                this.logMode = value;
+            else if (args[i].equals("-senderargs"))
+                this.senderArgs = value.trim();
+            else if (args[i].equals("-receiverargs"))
+                this.receiverArgs = value.trim();
+            else if (args[i].equals("-seed"))
+                this.seed = Long.parseLong(value);
+            else if (args[i].equals("-timeout"))
+                this.timeout = Long.parseLong(value);
+            else if (args[i].equals("-port"))
+                this.port = Integer.parseInt(value);
+            else if (args[i].equals("-out"))
+                this.outputFilename = value;
+            else return false;
+        }
+        return true;
+    }
+
+    private void runAll() throws IOException, InterruptedException {
+        this.workDirectory = Files.createTempDirectory("loopback").toFile();
+        System.out.println(String.join(",", COLUMNS));
+        int run = 0;
+        try {
+            for (String size : this.sizes) {
+                File input = createInput(parseSize(size));
+                for (String window : this.windows)
+                    for (String mss : this.segmentSizes)
+                        for (String loss : this.lossRates)
+                            for (String mode : this.modes)
+                                for (int i = 0; i < this.repeat; i++) {
+                                    String[] result = runOnce(input, window, mss, loss, mode,
+                                        i, this.port + (run++ % 1000) * PORTS_PER_RUN);
+                                    this.results.add(result);
+                                    System.out.println(String.join(",", result));
+                                }
+                input.delete();
+            }
+        } finally {
+            for (File file : this.workDirectory.listFiles())
+                file.delete();
+            this.workDirectory.delete();
+        }
+    }
+
+    private static long parseSize(String size) {
+        String digits = size.toUpperCase();
+        long unit = 1;
+        if (digits.endsWith("K"))
+            unit = 1024;
+        else if (digits.endsWith("M"))
+            unit = 1024 * 1024;
+        if (unit > 1)
+            digits = digits.substring(0, digits.length() - 1);
+        return Long.parseLong(digits) * unit;
+    }
+
+    private File createInput(long size) throws IOException {
+        File input = new File(this.workDirectory, "input-" + size);
+        Random random = new Random(this.seed);
+        byte[] block = new byte[1 << 16];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(input));
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return input;
+    }
+
+    /*
+     * One transfer. The receiver listens on the given port, the sender
+     * accepts the ack connection on the next one and sends to the proxy
+     * on the one after that.
+     */
+    private String[] runOnce(File input, String window, String mss, String loss, String mode,
+            int run, int receiverPort) throws IOException, InterruptedException {
+        File output = new File(this.workDirectory, "output");
+        output.delete();
+        int ackPort = receiverPort + 1;
+        int proxyPort = receiverPort + 2;
+
+        ArrayList<String> command = javaCommand("TCPreceiver");
+        addAll(command, output.getPath(), String.valueOf(receiverPort), "127.0.0.1",
+            String.valueOf(ackPort), new File(this.workDirectory, "receiver.log").getPath(),
+            "-mode", mode, "-log", this.logMode);
+        addArgs(command, this.receiverArgs);
+        File receiverOutput = new File(this.workDirectory, "receiver.out");
+        Process receiver = start(command, receiverOutput);
+
+        command = javaCommand("ImpairmentProxy");
+        addAll(command, String.valueOf(proxyPort), "127.0.0.1", String.valueOf(receiverPort),
+            "-seed", String.valueOf(this.seed + run), "-loss", loss);
+        Process proxy = start(command, null);
+
+        File senderOutput = new File(this.workDirectory, "sender.out");
+        Process sender = null;
+        try {
+            Thread.sleep(STARTUP_DELAY);
+            command = javaCommand("TCPsender");
+            addAll(command, input.getPath(), "127.0.0.1", String.valueOf(proxyPort),
+                String.valueOf(ackPort), new File(this.workDirectory, "sender.log").getPath(),
+                window, "-mode", mode, "-mss", mss, "-log", this.logMode);
+            addArgs(command, this.senderArgs);
+            sender = start(command, senderOutput);
+            if (!sender.waitFor(this.timeout, java.util.concurrent.TimeUnit.SECONDS))
+                sender.destroyForcibly();
+            receiver.waitFor(SHUTDOWN_DELAY, java.util.concurrent.TimeUnit.MILLISECONDS);
+        } finally {
+            if (sender != null)
+                sender.destroyForcibly().waitFor();
+            receiver.destroyForcibly().waitFor();
+            proxy.destroyForcibly().waitFor();
+        }
+
+        boolean ok = output.exists() && Files.mismatch(input.toPath(), output.toPath()) == -1;
+        long timeMs = readStatistic(senderOutput, "Transfer time (ms)");
+        double goodput = timeMs > 0 ? input.length() / 1000.0 / timeMs : 0;
+        return new String[] { String.valueOf(input.length()), window, mss, loss, mode,
+            String.valueOf(run), String.valueOf(ok), String.valueOf(timeMs),
+            String.format("%.3f", goodput),
+            String.valueOf(readStatistic(senderOutput, "Segment sent")),
+            String.valueOf(readStatistic(senderOutput, "Segments retransmitted")),
+            String.valueOf(readStatistic(senderOutput, "Total bytes sent")),
+            String.valueOf(readStatistic(senderOutput, "CPU time (ms)")),
+            String.valueOf(readStatistic(senderOutput, "Peak heap (bytes)")),
+            String.valueOf(readStatistic(receiverOutput, "CPU time (ms)")),
+            String.valueOf(readStatistic(receiverOutput, "Peak heap (bytes)")) };
+    }
+
+    private static ArrayList<String> javaCommand(String mainClass) {
+        ArrayList<String> command = new ArrayList<String>();
+        addAll(command, System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java", "-cp", System.getProperty("java.class.path"), mainClass);
+        return command;
+    }
+
+    private static void addAll(ArrayList<String> command, String... args) {
+        for (String arg : args)
+            command.add(arg);
+    }
+
+    private static void addArgs(ArrayList<String> command, String args) {
+        if (!args.isEmpty())
+            addAll(command, args.split("\\s+"));
+    }
+
+    /*
+     * Start a process, its output goes to the given file or is discarded.
+     */
+    private static Process start(ArrayList<String> command, File output) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(output == null
+            ? ProcessBuilder.Redirect.DISCARD : ProcessBuilder.Redirect.to(output));
+        return builder.start();
+    }
+
+    /*
+     * Value of a "name = value" line of the sender statistics, -1 if the
+     * sender did not print it.
+     */
+    private static long readStatistic(File output, String name) throws IOException {
+        if (!output.exists())
+            return -1;
+        String prefix = name + " = ";
+        BufferedReader reader = new BufferedReader(new FileReader(output));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(prefix))
+                    return Long.parseLong(line.substring(prefix.length()).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return -1;
+    }
+
+    private void writeResults() throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(this.outputFilename));
+        try {
+            if (this.outputFilename.endsWith(".json"))
+                writeJson(out);
+            else writeCsv(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Results written to " + this.outputFilename);
+    }
+
+    private void writeCsv(PrintWriter out) {
+        out.println(String.join(",", COLUMNS));
+        for (String[] result : this.results)
+            out.println(String.join(",", result));
+    }
+
+    /*
+     * An array of objects, the mode is the only string, every other value
+     * is a number or a boolean.
+     */
+    private void writeJson(PrintWriter out) {
+        out.println("[");
+        for (int i = 0; i < this.results.size(); i++) {
+            String[] result = this.results.get(i);
+            StringBuilder line = new StringBuilder("  {");
+            for (int j = 0; j < COLUMNS.length; j++) {
+                if (j > 0)
+                    line.append(", ");
+                boolean quoted = COLUMNS[j].equals("mode")
+                    || (COLUMNS[j].equals("mss") && result[j].equals("auto"));
+                line.append('"').append(COLUMNS[j]).append("\": ");
+                line.append(quoted ? "\"" + result[j] + "\"" : result[j]);
+            }
+            line.append(i < this.results.size() - 1 ? "}," : "}");
+            out.println(line);
+        }
+        out.println("]");
+    }
+}